@@ -19,6 +19,8 @@ java {
 dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.8.1")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.8.1")
+    testImplementation("io.netty:netty-buffer:${Version.NETTY}")
+    testImplementation("io.netty:netty-transport:${Version.NETTY}")
 
     compileOnly("io.netty:netty-buffer:${Version.NETTY}")
     compileOnly("io.netty:netty-transport:${Version.NETTY}")
@@ -26,6 +28,13 @@ dependencies {
 
 tasks.getByName<Test>("test") {
     useJUnitPlatform()
+    // The tests run over the in-memory backend unless -PiocpBackend=jni is given on Windows.
+    systemProperty("kr.jclab.netty.channel.iocp.backend", findProperty("iocpBackend") ?: "inmemory")
+    // The *Benchmark tests only run with -Pbenchmark, and then without the checks which would distort them.
+    val benchmark = project.hasProperty("benchmark")
+    systemProperty("kr.jclab.netty.channel.iocp.benchmark", benchmark)
+    systemProperty("kr.jclab.netty.channel.iocp.checkOverlappedLifecycle", !benchmark)
+    systemProperty("io.netty.leakDetection.level", if (benchmark) "disabled" else "paranoid")
 }
 
 
@@ -19,6 +19,14 @@ public abstract class AbstractIocpChannel extends AbstractChannel {
     protected volatile boolean closed = false;
     protected volatile boolean active = false;
 
+    /**
+     * The {@link IocpEventLoop} whose completion port the handle of this channel is attached to. This is not
+     * necessarily {@link #eventLoop()} as an accepted pipe stays attached to the completion port of its server.
+     */
+    private volatile IocpEventLoop completionLoop;
+    // Only accessed by eventLoop(), see IocpEventLoop.afterCompletionBatch(...)
+    boolean completionBatchPending;
+
     protected AbstractIocpChannel(Channel parent) {
         super(parent);
     }
@@ -109,6 +117,14 @@ public abstract class AbstractIocpChannel extends AbstractChannel {
         }
     }
 
+    final IocpEventLoop completionLoop() {
+        return completionLoop;
+    }
+
+    final void completionLoop(IocpEventLoop completionLoop) {
+        this.completionLoop = completionLoop;
+    }
+
     protected final void closeIfClosed() {
         if (isOpen()) {
             return;
@@ -120,9 +136,40 @@ public abstract class AbstractIocpChannel extends AbstractChannel {
 
     protected abstract void doCloseHandle() throws IOException;
 
-    protected abstract void handleEvent(OverlappedEntry entry) throws Exception;
+    /**
+     * Handle the completion of the operation described by the given {@link IocpCompletionContext}. The in-flight
+     * reference of {@link IocpCompletionContext#overlapped()} must be released by the implementation. Always called
+     * from {@link #eventLoop()}, completions dequeued by another completion loop are handed over.
+     */
+    protected abstract void handleEvent(IocpCompletionContext context, OverlappedEntry entry) throws Exception;
+
+    /**
+     * Called once all completions which were dequeued together with one handled by
+     * {@link #handleEvent(IocpCompletionContext, OverlappedEntry)} were handled, if requested with
+     * {@link IocpEventLoop#afterCompletionBatch(AbstractIocpChannel)}.
+     */
+    protected void completionBatchDone() throws Exception {
+    }
 
     protected abstract class AbstractIocpUnsafe extends AbstractUnsafe {
+        private IocpRecvByteAllocatorHandle allocHandle;
+
+        @Override
+        public IocpRecvByteAllocatorHandle recvBufAllocHandle() {
+            if (allocHandle == null) {
+                allocHandle = newIocpHandle((RecvByteBufAllocator.ExtendedHandle) super.recvBufAllocHandle());
+            }
+            return allocHandle;
+        }
+
+        /**
+         * Create a new {@link IocpRecvByteAllocatorHandle} instance.
+         * @param handle The handle to wrap with IOCP specific logic.
+         */
+        IocpRecvByteAllocatorHandle newIocpHandle(RecvByteBufAllocator.ExtendedHandle handle) {
+            return new IocpRecvByteAllocatorHandle(handle);
+        }
+
         @Override
         public void flush0() {
             super.flush0();
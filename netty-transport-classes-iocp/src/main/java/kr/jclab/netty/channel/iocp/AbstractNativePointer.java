@@ -5,9 +5,21 @@ import java.util.concurrent.atomic.AtomicInteger;
 public abstract class AbstractNativePointer implements NativePointer {
     private AtomicInteger refCount = new AtomicInteger(1);
     private long pointer = 0;
+    private final long size;
 
     public AbstractNativePointer(long pointer) {
+        this(pointer, 0);
+    }
+
+    /**
+     * @param size the number of bytes at {@code pointer}, as reported by {@link MemoryLeakDetector}
+     */
+    public AbstractNativePointer(long pointer, long size) {
         this.pointer = pointer;
+        this.size = size;
+        if (pointer != 0) {
+            MemoryLeakDetector.put(MemoryLeakDetector.Kind.NATIVE_POINTER, pointer, size, this);
+        }
     }
 
     @Override
@@ -36,7 +48,9 @@ public abstract class AbstractNativePointer implements NativePointer {
         if (pointer == 0) {
             return ;
         }
+        MemoryLeakDetector.remove(MemoryLeakDetector.Kind.NATIVE_POINTER, pointer, size);
         nativeFree(pointer);
+        pointer = 0;
         refCount.set(0);
     }
 
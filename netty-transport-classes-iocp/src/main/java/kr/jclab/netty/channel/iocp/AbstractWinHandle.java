@@ -3,6 +3,7 @@ package kr.jclab.netty.channel.iocp;
 import java.io.IOException;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import static io.netty.util.internal.ObjectUtil.checkPositiveOrZero;
 import static kr.jclab.netty.channel.iocp.Errors.newIOException;
@@ -14,6 +15,8 @@ import static kr.jclab.netty.channel.iocp.Errors.newIOException;
 public abstract class AbstractWinHandle {
     private static final AtomicIntegerFieldUpdater<AbstractWinHandle> stateUpdater =
             AtomicIntegerFieldUpdater.newUpdater(AbstractWinHandle.class, "state");
+    // Handles which were wrapped and not closed yet, process wide.
+    private static final LongAdder openHandles = new LongAdder();
 
     private static final int STATE_CLOSED_MASK = 1;
     private static final int STATE_INPUT_SHUTDOWN_MASK = 1 << 1;
@@ -31,6 +34,14 @@ public abstract class AbstractWinHandle {
     public AbstractWinHandle(long handle) {
         checkPositiveOrZero(handle, "handle");
         this.handle = handle;
+        openHandles.increment();
+    }
+
+    /**
+     * Returns the number of handles owned by the transport which were not closed yet.
+     */
+    static long openHandles() {
+        return openHandles.sum();
     }
 
     /**
@@ -58,6 +69,7 @@ public abstract class AbstractWinHandle {
      */
     public void close() throws IOException {
         if (markClosed()) {
+            openHandles.decrement();
             int res = closeImpl(handle);
             if (res < 0) {
                 throw newIOException("close", res);
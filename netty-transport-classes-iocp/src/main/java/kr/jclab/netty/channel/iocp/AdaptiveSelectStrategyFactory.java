@@ -0,0 +1,79 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.channel.SelectStrategy;
+import io.netty.channel.SelectStrategyFactory;
+import io.netty.util.IntSupplier;
+import io.netty.util.internal.ObjectUtil;
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SelectStrategyFactory} for {@link IocpEventLoopGroup} which spins on zero-timeout dequeues for a while after
+ * the last completion and only then falls back to a blocking wait.
+ * <p>
+ * While spinning the loop uses {@link SelectStrategy#BUSY_WAIT}, which gives microsecond level response on hot pipes.
+ * Once no completion was seen for the spin budget the loop parks in GetQueuedCompletionStatusEx again, so idle loops do
+ * not keep a core busy. The {@link IocpEventLoop} reports every batch of I/O completions it handled, whichever wait
+ * dequeued it, so a busy pipe keeps the loop spinning. The default budget is taken from the {@code kr.jclab.netty.channel.iocp.busyWaitSpinMicros}
+ * system property (50 microseconds).
+ */
+public final class AdaptiveSelectStrategyFactory implements SelectStrategyFactory {
+    private static final long DEFAULT_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(Math.max(0,
+            SystemPropertyUtil.getLong("kr.jclab.netty.channel.iocp.busyWaitSpinMicros", 50)));
+
+    public static final SelectStrategyFactory INSTANCE = new AdaptiveSelectStrategyFactory(DEFAULT_SPIN_NANOS);
+
+    private final long spinNanos;
+
+    /**
+     * Creates a new factory which spins for the given budget after the last completion.
+     */
+    public AdaptiveSelectStrategyFactory(long spinBudget, TimeUnit unit) {
+        this(ObjectUtil.checkNotNull(unit, "unit").toNanos(ObjectUtil.checkPositiveOrZero(spinBudget, "spinBudget")));
+    }
+
+    private AdaptiveSelectStrategyFactory(long spinNanos) {
+        this.spinNanos = spinNanos;
+    }
+
+    @Override
+    public SelectStrategy newSelectStrategy() {
+        // Every EventLoop tracks its own activity.
+        return new AdaptiveSelectStrategy(spinNanos);
+    }
+
+    // Only used by the EventLoop thread.
+    static final class AdaptiveSelectStrategy implements SelectStrategy {
+        private final long spinNanos;
+        private long lastActivityNanos;
+        private boolean spinning;
+
+        AdaptiveSelectStrategy(long spinNanos) {
+            this.spinNanos = spinNanos;
+        }
+
+        /**
+         * Called by the {@link IocpEventLoop} once it handled I/O completions, which opens a new spin window.
+         */
+        void completionsProcessed() {
+            lastActivityNanos = System.nanoTime();
+            spinning = true;
+        }
+
+        @Override
+        public int calculateStrategy(IntSupplier selectSupplier, boolean hasTasks) throws Exception {
+            if (hasTasks) {
+                // Harvest completions without blocking, the tasks are run next.
+                return selectSupplier.get();
+            }
+            if (spinning) {
+                if (System.nanoTime() - lastActivityNanos < spinNanos) {
+                    return SelectStrategy.BUSY_WAIT;
+                }
+                spinning = false;
+            }
+            return SelectStrategy.SELECT;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package kr.jclab.netty.channel.iocp;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.util.internal.PlatformDependent;
 import io.netty.util.internal.UnstableApi;
 
@@ -52,6 +53,18 @@ public final class Buffer {
         return NativeStaticallyReferencedJniMethods.bufferMemoryAddress(buffer);
     }
 
+    /**
+     * Returns the memory address of the byte at the given index of the given direct {@link ByteBuf}.
+     */
+    public static long memoryAddress(ByteBuf buf, int index) {
+        assert buf.isDirect();
+        if (buf.hasMemoryAddress()) {
+            return buf.memoryAddress() + index;
+        }
+        ByteBuffer nioBuffer = buf.internalNioBuffer(index, 0);
+        return memoryAddress(nioBuffer) + nioBuffer.position();
+    }
+
     /**
      * Returns the size of a pointer.
      */
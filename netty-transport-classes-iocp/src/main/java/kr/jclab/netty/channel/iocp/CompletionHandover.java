@@ -0,0 +1,122 @@
+package kr.jclab.netty.channel.iocp;
+
+import java.util.Arrays;
+
+/**
+ * Completions which another {@link IocpEventLoop} dequeued for channels of the loop owning this handover.
+ * <p>
+ * The handle of an accepted pipe stays attached to the completion port of the loop of its server channel, while the
+ * pipe itself may be registered to another loop. The completion loop appends such completions here and, for the first
+ * completion after a drain, schedules the drain task of the owning loop once its dequeued batch was handled. The
+ * owning loop takes all collected completions at once and handles them as one batch of its own. Two sets of arrays are
+ * swapped on every drain and reused, so handing over a completion does not allocate.
+ * <p>
+ * Appending may happen from several completion loops, so it is guarded by a lock.
+ * <p>
+ * Once the owning loop was shut down it closes the handover and takes the remaining completions itself, later
+ * completions are released by the completion loop.
+ */
+final class CompletionHandover {
+    /**
+     * The completion was appended, the drain task is already scheduled.
+     */
+    static final int QUEUED = 0;
+    /**
+     * The completion was appended, the caller must schedule the drain task of the owning loop.
+     */
+    static final int SCHEDULE = 1;
+    /**
+     * The owning loop was shut down, the caller must release the overlapped of the completion itself.
+     */
+    static final int CLOSED = 2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Guarded by this
+    private Completions inbound = new Completions();
+    private Completions spare = new Completions();
+    private boolean scheduled;
+    private boolean closed;
+
+    /**
+     * Append the completion of the given context.
+     *
+     * @return {@link #QUEUED}, {@link #SCHEDULE} or {@link #CLOSED}
+     */
+    synchronized int add(IocpCompletionContext context, OverlappedEntry entry) {
+        if (closed) {
+            return CLOSED;
+        }
+        inbound.add(context, entry);
+        if (scheduled) {
+            return QUEUED;
+        }
+        scheduled = true;
+        return SCHEDULE;
+    }
+
+    /**
+     * Refuse all further completions. Called by the owning loop once it runs no tasks anymore, it must take the
+     * completions which were appended before.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * Take the appended completions. Only called by the owning loop, which must {@link Completions#clear()} them
+     * before calling this method again.
+     */
+    synchronized Completions take() {
+        Completions taken = inbound;
+        inbound = spare;
+        spare = taken;
+        scheduled = false;
+        return taken;
+    }
+
+    static final class Completions {
+        private IocpCompletionContext[] contexts = new IocpCompletionContext[INITIAL_CAPACITY];
+        private int[] bytesTransferred = new int[INITIAL_CAPACITY];
+        private long[] fileHandles = new long[INITIAL_CAPACITY];
+        private int[] bufferSizes = new int[INITIAL_CAPACITY];
+        private int size;
+
+        private void add(IocpCompletionContext context, OverlappedEntry entry) {
+            if (size == contexts.length) {
+                int capacity = size << 1;
+                contexts = Arrays.copyOf(contexts, capacity);
+                bytesTransferred = Arrays.copyOf(bytesTransferred, capacity);
+                fileHandles = Arrays.copyOf(fileHandles, capacity);
+                bufferSizes = Arrays.copyOf(bufferSizes, capacity);
+            }
+            contexts[size] = context;
+            bytesTransferred[size] = entry.getNumberOfBytesTransferred();
+            fileHandles[size] = entry.getFileHandle();
+            bufferSizes[size] = entry.getBufferSize();
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        IocpCompletionContext context(int index) {
+            return contexts[index];
+        }
+
+        /**
+         * Decode the completion at the given index into the given entry.
+         */
+        void decode(int index, OverlappedEntry entry) {
+            IocpCompletionContext context = contexts[index];
+            entry.setEntry(Native.IOCP_CONTEXT_HANDLE, context.memoryAddress(), bytesTransferred[index]);
+            entry.setOverlapped(fileHandles[index], 0, bufferSizes[index], context.index());
+        }
+
+        void clear() {
+            Arrays.fill(contexts, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,871 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pure Java {@link IocpBackend} which emulates completion ports, overlapped reads / writes and named pipe instances
+ * in memory. It allows to run and profile the whole event loop and channel stack on platforms other than Windows.
+ * <p>
+ * Completion packets of overlapped operations become visible after a configurable latency which defaults to the
+ * {@code kr.jclab.netty.channel.iocp.inmemory.latencyMicros} system property.
+ * <p>
+ * The overlapped headers are real native memory laid out like {@code netty_iocp_native_overlapped_t}, so
+ * {@code sun.misc.Unsafe} must be available.
+ */
+final class InMemoryIocpBackend implements IocpBackend {
+    private static final long DEFAULT_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            SystemPropertyUtil.getLong("kr.jclab.netty.channel.iocp.inmemory.latencyMicros", 0));
+
+    private static final int ADDRESS_SIZE = PlatformDependent.addressSize();
+
+    // typedef struct _OVERLAPPED_ENTRY {
+    //     ULONG_PTR    lpCompletionKey;
+    //     LPOVERLAPPED lpOverlapped;
+    //     ULONG_PTR    Internal;
+    //     DWORD        dwNumberOfBytesTransferred;
+    // } OVERLAPPED_ENTRY;
+    private static final int ENTRY_COMPLETION_KEY = 0;
+    private static final int ENTRY_OVERLAPPED = ADDRESS_SIZE;
+    private static final int ENTRY_INTERNAL = ADDRESS_SIZE * 2;
+    private static final int ENTRY_NUMBER_OF_BYTES_TRANSFERRED = ADDRESS_SIZE * 3;
+    private static final int ENTRY_SIZE = align(ENTRY_NUMBER_OF_BYTES_TRANSFERRED + 4, ADDRESS_SIZE);
+
+    // OVERLAPPED followed by the fields of netty_iocp_native_overlapped_t
+    private static final int OVERLAPPED_INTERNAL = 0;
+    private static final int OVERLAPPED_INTERNAL_HIGH = ADDRESS_SIZE;
+    private static final int OVERLAPPED_EVENT = ADDRESS_SIZE * 2 + 8;
+    private static final int OVERLAPPED_SIZE = OVERLAPPED_EVENT + ADDRESS_SIZE;
+    private static final int HEADER_MAGIC = OVERLAPPED_SIZE;
+    private static final int HEADER_FILE_HANDLE = align(HEADER_MAGIC + 4, ADDRESS_SIZE);
+    private static final int HEADER_BUFFER_SIZE = HEADER_FILE_HANDLE + ADDRESS_SIZE;
+    private static final int HEADER_CONTEXT_INDEX = HEADER_BUFFER_SIZE + 4;
+    private static final int HEADER_BUFFER = align(HEADER_CONTEXT_INDEX + 4, ADDRESS_SIZE);
+    private static final int HEADER_SIZE = HEADER_BUFFER + ADDRESS_SIZE;
+
+    // Same values as the Win32 API
+    private static final int PIPE_ACCESS_INBOUND = 0x00000001;
+    private static final int PIPE_ACCESS_OUTBOUND = 0x00000002;
+    private static final int PIPE_ACCESS_DUPLEX = 0x00000003;
+    private static final int FILE_FLAG_FIRST_PIPE_INSTANCE = 0x00080000;
+    private static final int FILE_FLAG_OVERLAPPED = 0x40000000;
+    private static final int GENERIC_READ = 0x80000000;
+    private static final int GENERIC_WRITE = 0x40000000;
+    private static final int OPEN_EXISTING = 3;
+    private static final int PIPE_READMODE_BYTE = 0x00000000;
+    private static final int PIPE_READMODE_MESSAGE = 0x00000002;
+    private static final int PIPE_UNLIMITED_INSTANCES = 255;
+    private static final int FILE_SKIP_COMPLETION_PORT_ON_SUCCESS = 0x1;
+
+    private static final int ERROR_FILE_NOT_FOUND = 2;
+    private static final int ERROR_ACCESS_DENIED = 5;
+    private static final int ERROR_INVALID_HANDLE = 6;
+    private static final int ERROR_INVALID_PARAMETER = 87;
+    private static final int ERROR_BROKEN_PIPE = 109;
+    private static final int ERROR_PIPE_BUSY = 231;
+    private static final int ERROR_NO_DATA = 232;
+    private static final int ERROR_PIPE_LISTENING = 536;
+    private static final int ERROR_ABANDONED_WAIT_0 = 735;
+    private static final int ERROR_IO_PENDING = 997;
+    private static final int ERROR_NOT_FOUND = 1168;
+
+    private static final long STATUS_SUCCESS = 0;
+    private static final long STATUS_CANCELLED = 0xC0000120L;
+    private static final long STATUS_PIPE_BROKEN = 0xC000014BL;
+
+    private static final long PROCESS_ID = currentProcessId();
+
+    private final long latencyNanos;
+    private final AtomicLong nextHandle = new AtomicLong(0x100);
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<Long, Object> handles = new ConcurrentHashMap<Long, Object>();
+    // Guarded by this
+    private final Map<String, List<PipeEnd>> pipeInstances = new HashMap<String, List<PipeEnd>>();
+
+    InMemoryIocpBackend() {
+        this(DEFAULT_LATENCY_NANOS);
+    }
+
+    InMemoryIocpBackend(long latencyNanos) {
+        if (!PlatformDependent.hasUnsafe()) {
+            throw new IllegalStateException("The in-memory IOCP backend requires sun.misc.Unsafe",
+                    PlatformDependent.getUnsafeUnavailabilityCause());
+        }
+        this.latencyNanos = Math.max(0, latencyNanos);
+    }
+
+    @Override
+    public String name() {
+        return "inmemory";
+    }
+
+    @Override
+    public int sizeOfOverlappedEntry() {
+        return ENTRY_SIZE;
+    }
+
+    @Override
+    public int offsetofOverlappedEntryCompletionKey() {
+        return ENTRY_COMPLETION_KEY;
+    }
+
+    @Override
+    public int offsetofOverlappedEntryOverlapped() {
+        return ENTRY_OVERLAPPED;
+    }
+
+    @Override
+    public int offsetofOverlappedEntryNumberOfBytesTransferred() {
+        return ENTRY_NUMBER_OF_BYTES_TRANSFERRED;
+    }
+
+    @Override
+    public int sizeOfNativeOverlappedStruct() {
+        return HEADER_SIZE;
+    }
+
+    @Override
+    public int offsetofNativeOverlappedEventHandle() {
+        return OVERLAPPED_EVENT;
+    }
+
+    @Override
+    public int offsetofNativeOverlappedMagic() {
+        return HEADER_MAGIC;
+    }
+
+    @Override
+    public int offsetofNativeOverlappedFileHandle() {
+        return HEADER_FILE_HANDLE;
+    }
+
+    @Override
+    public int offsetofNativeOverlappedBufferSize() {
+        return HEADER_BUFFER_SIZE;
+    }
+
+    @Override
+    public int offsetofNativeOverlappedContextIndex() {
+        return HEADER_CONTEXT_INDEX;
+    }
+
+    @Override
+    public int pipeAccessDuplex() {
+        return PIPE_ACCESS_DUPLEX;
+    }
+
+    @Override
+    public int pipeAccessInbound() {
+        return PIPE_ACCESS_INBOUND;
+    }
+
+    @Override
+    public int pipeAccessOutbound() {
+        return PIPE_ACCESS_OUTBOUND;
+    }
+
+    @Override
+    public int fileFlagFirstPipeInstance() {
+        return FILE_FLAG_FIRST_PIPE_INSTANCE;
+    }
+
+    @Override
+    public int fileFlagOverlapped() {
+        return FILE_FLAG_OVERLAPPED;
+    }
+
+    @Override
+    public int flagGenericRead() {
+        return GENERIC_READ;
+    }
+
+    @Override
+    public int flagGenericWrite() {
+        return GENERIC_WRITE;
+    }
+
+    @Override
+    public int flagOpenExisting() {
+        return OPEN_EXISTING;
+    }
+
+    @Override
+    public int flagPipeReadmodeMessage() {
+        return PIPE_READMODE_MESSAGE;
+    }
+
+    @Override
+    public int flagPipeReadmodeByte() {
+        return PIPE_READMODE_BYTE;
+    }
+
+    @Override
+    public int errorNotFound() {
+        return ERROR_NOT_FOUND;
+    }
+
+    @Override
+    public int errorIoPending() {
+        return ERROR_IO_PENDING;
+    }
+
+    @Override
+    public int errorBrokenPipe() {
+        return ERROR_BROKEN_PIPE;
+    }
+
+    @Override
+    public int fileSkipCompletionPortOnSuccess() {
+        return FILE_SKIP_COMPLETION_PORT_ON_SUCCESS;
+    }
+
+    @Override
+    public int closeHandle(long handle) {
+        Object object = handles.remove(handle);
+        if (object == null) {
+            return ERROR_INVALID_HANDLE;
+        }
+        if (object instanceof CompletionPort) {
+            ((CompletionPort) object).close();
+        } else if (object instanceof PipeEnd) {
+            synchronized (this) {
+                closePipe((PipeEnd) object);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int wsaCloseEvent(long handle) {
+        return closeHandle(handle);
+    }
+
+    @Override
+    public long createIoCompletionPort(long handle, long existingCompletionPort, long completionKey,
+                                       int numberOfConcurrentThreads) {
+        if (handle == Native.INVALID_HANDLE_VALUE) {
+            if (existingCompletionPort != 0) {
+                return -ERROR_INVALID_PARAMETER;
+            }
+            CompletionPort port = new CompletionPort();
+            long portHandle = newHandle(port);
+            return portHandle;
+        }
+
+        CompletionPort port = lookup(existingCompletionPort, CompletionPort.class);
+        if (port == null) {
+            return -ERROR_INVALID_HANDLE;
+        }
+        synchronized (this) {
+            PipeEnd end = lookup(handle, PipeEnd.class);
+            if (end == null) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            if (end.port != null) {
+                // A handle can only be associated with one completion port.
+                return -ERROR_INVALID_PARAMETER;
+            }
+            end.port = port;
+            end.completionKey = completionKey;
+        }
+        return existingCompletionPort;
+    }
+
+    @Override
+    public int getQueuedCompletionStatusEx(long handle, long entries, int count, int timeoutMillis) {
+        CompletionPort port = lookup(handle, CompletionPort.class);
+        if (port == null) {
+            return -ERROR_INVALID_HANDLE;
+        }
+        Packet packet;
+        try {
+            if (timeoutMillis < 0) {
+                // INFINITE
+                packet = port.queue.take();
+            } else if (timeoutMillis == 0) {
+                packet = port.queue.poll();
+            } else {
+                packet = port.queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        if (packet == null) {
+            return 0;
+        }
+        if (packet == Packet.CLOSED) {
+            // Keep it queued so every other waiter wakes up as well.
+            port.queue.add(packet);
+            return -ERROR_ABANDONED_WAIT_0;
+        }
+
+        int removed = 0;
+        do {
+            long entry = entries + (long) removed * ENTRY_SIZE;
+            putPointer(entry + ENTRY_COMPLETION_KEY, packet.completionKey);
+            putPointer(entry + ENTRY_OVERLAPPED, packet.overlappedPointer);
+            putPointer(entry + ENTRY_INTERNAL, packet.status);
+            PlatformDependent.putInt(entry + ENTRY_NUMBER_OF_BYTES_TRANSFERRED, packet.numberOfBytesTransferred);
+            removed++;
+            if (removed == count) {
+                break;
+            }
+            packet = port.queue.poll();
+            if (packet == Packet.CLOSED) {
+                port.queue.add(packet);
+                break;
+            }
+        } while (packet != null);
+        return removed;
+    }
+
+    @Override
+    public int getQueuedCompletionStatusExBusyWait(long handle, long entries, int count) {
+        return getQueuedCompletionStatusEx(handle, entries, count, 0);
+    }
+
+    @Override
+    public int postQueuedCompletionStatus(long handle, int numberOfBytesTransferred, long completionKey,
+                                          long overlappedPointer) {
+        CompletionPort port = lookup(handle, CompletionPort.class);
+        if (port == null) {
+            return -ERROR_INVALID_HANDLE;
+        }
+        port.post(new Packet(completionKey, overlappedPointer, numberOfBytesTransferred, STATUS_SUCCESS,
+                System.nanoTime(), nextSequence.getAndIncrement()));
+        return 0;
+    }
+
+    @Override
+    public int readOverlappedEntry(long pointer, OverlappedEntry entry) {
+        long overlappedPointer = getPointer(pointer + ENTRY_OVERLAPPED);
+        entry.setEntry(
+                getPointer(pointer + ENTRY_COMPLETION_KEY),
+                overlappedPointer,
+                PlatformDependent.getInt(pointer + ENTRY_NUMBER_OF_BYTES_TRANSFERRED));
+        if (overlappedPointer != 0 &&
+                PlatformDependent.getInt(overlappedPointer + HEADER_MAGIC) == NativeOverlapped.OVERLAPPED_MAGIC) {
+            entry.setOverlapped(
+                    getPointer(overlappedPointer + HEADER_FILE_HANDLE),
+                    getPointer(overlappedPointer + OVERLAPPED_EVENT),
+                    PlatformDependent.getInt(overlappedPointer + HEADER_BUFFER_SIZE),
+                    PlatformDependent.getInt(overlappedPointer + HEADER_CONTEXT_INDEX));
+        }
+        return 0;
+    }
+
+    @Override
+    public long createNamedPipe(String name, int openMode, int maxInstances, int outBufferSize, int inBufferSize,
+                                int defaultTimeout, long securityAttributesPointer) {
+        String key = pipeKey(name);
+        synchronized (this) {
+            List<PipeEnd> instances = pipeInstances.get(key);
+            if (instances == null) {
+                instances = new ArrayList<PipeEnd>();
+                pipeInstances.put(key, instances);
+            }
+            if ((openMode & FILE_FLAG_FIRST_PIPE_INSTANCE) != 0 && !instances.isEmpty()) {
+                return -ERROR_ACCESS_DENIED;
+            }
+            if (maxInstances > 0 && maxInstances < PIPE_UNLIMITED_INSTANCES && instances.size() >= maxInstances) {
+                return -ERROR_PIPE_BUSY;
+            }
+            PipeEnd end = new PipeEnd(key, true);
+            // The native implementation always creates PIPE_TYPE_MESSAGE | PIPE_READMODE_MESSAGE instances.
+            end.messageMode = true;
+            end.handle = newHandle(end);
+            instances.add(end);
+            return end.handle;
+        }
+    }
+
+    @Override
+    public int connectNamedPipe(long handle, long overlappedPointer) {
+        synchronized (this) {
+            PipeEnd end = lookup(handle, PipeEnd.class);
+            if (end == null || !end.server) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            if (end.connected) {
+                // ERROR_PIPE_CONNECTED: the client connected in between, no completion packet is queued.
+                return 1;
+            }
+            if (end.pendingConnect != 0) {
+                return -ERROR_INVALID_PARAMETER;
+            }
+            end.pendingConnect = overlappedPointer;
+            return 0;
+        }
+    }
+
+    @Override
+    public long createEvent(long securityAttributePointer, boolean manualReset, boolean initialState, String name) {
+        return newHandle(new Object());
+    }
+
+    @Override
+    public long createHighResolutionTimer() {
+        return newHandle(new WaitableTimer());
+    }
+
+    @Override
+    public int setWaitableTimer(long handle, long delayNanos) {
+        WaitableTimer timer = lookup(handle, WaitableTimer.class);
+        if (timer == null) {
+            return ERROR_INVALID_HANDLE;
+        }
+        timer.set(delayNanos);
+        return 0;
+    }
+
+    @Override
+    public int waitForSingleObject(long handle) {
+        WaitableTimer timer = lookup(handle, WaitableTimer.class);
+        if (timer == null) {
+            return ERROR_INVALID_HANDLE;
+        }
+        try {
+            timer.await();
+        } catch (InterruptedException e) {
+            // Like an alerted wait, the caller re-evaluates its state.
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    @Override
+    public int overlappedInitialize(long memory, long eventHandle, long fileHandle, long bufferAddress,
+                                    int bufferSize, int contextIndex) {
+        PlatformDependent.setMemory(memory, OVERLAPPED_SIZE, (byte) 0);
+        putPointer(memory + OVERLAPPED_EVENT, eventHandle);
+        PlatformDependent.putInt(memory + HEADER_MAGIC, NativeOverlapped.OVERLAPPED_MAGIC);
+        putPointer(memory + HEADER_FILE_HANDLE, fileHandle);
+        PlatformDependent.putInt(memory + HEADER_BUFFER_SIZE, bufferSize);
+        PlatformDependent.putInt(memory + HEADER_CONTEXT_INDEX, contextIndex);
+        putPointer(memory + HEADER_BUFFER, bufferAddress);
+        return 0;
+    }
+
+    @Override
+    public int startOverlappedRead(long overlappedPointer, long bufferAddress, int bufferSize) {
+        synchronized (this) {
+            PipeEnd end = lookup(getPointer(overlappedPointer + HEADER_FILE_HANDLE), PipeEnd.class);
+            if (end == null) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            resetOverlapped(overlappedPointer, bufferAddress, bufferSize);
+            if (!end.inbound.isEmpty()) {
+                int read = fill(end, overlappedPointer);
+                completeImmediately(end, overlappedPointer, read);
+                return read;
+            }
+            if (end.peerClosed) {
+                return -ERROR_BROKEN_PIPE;
+            }
+            if (!end.connected) {
+                return -ERROR_PIPE_LISTENING;
+            }
+            end.pendingReads.add(overlappedPointer);
+            return -ERROR_IO_PENDING;
+        }
+    }
+
+    @Override
+    public int startOverlappedWrite(long overlappedPointer, long bufferAddress, int dataSize) {
+        synchronized (this) {
+            PipeEnd end = lookup(getPointer(overlappedPointer + HEADER_FILE_HANDLE), PipeEnd.class);
+            if (end == null) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            if (!end.connected) {
+                return -ERROR_PIPE_LISTENING;
+            }
+            if (end.peerClosed || end.peer == null) {
+                return -ERROR_NO_DATA;
+            }
+            resetOverlapped(overlappedPointer, bufferAddress, dataSize);
+            if (dataSize > 0) {
+                byte[] data = new byte[dataSize];
+                PlatformDependent.copyMemory(bufferAddress, data, 0, dataSize);
+                end.peer.inbound.add(data);
+                deliver(end.peer);
+            }
+            completeImmediately(end, overlappedPointer, dataSize);
+            return dataSize;
+        }
+    }
+
+    @Override
+    public int cancelIoEx(long handle, long overlappedPointer) {
+        synchronized (this) {
+            PipeEnd end = lookup(handle, PipeEnd.class);
+            if (end == null) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            boolean cancelled = false;
+            if (end.pendingConnect != 0 && (overlappedPointer == 0 || end.pendingConnect == overlappedPointer)) {
+                complete(end, end.pendingConnect, 0, STATUS_CANCELLED);
+                end.pendingConnect = 0;
+                cancelled = true;
+            }
+            if (overlappedPointer == 0) {
+                cancelled |= !end.pendingReads.isEmpty();
+                abortReads(end, STATUS_CANCELLED);
+            } else if (end.pendingReads.remove(overlappedPointer)) {
+                complete(end, overlappedPointer, 0, STATUS_CANCELLED);
+                cancelled = true;
+            }
+            return cancelled ? 0 : -ERROR_NOT_FOUND;
+        }
+    }
+
+    @Override
+    public long getNamedPipeClientProcessId(long handle) {
+        if (lookup(handle, PipeEnd.class) == null) {
+            return -ERROR_INVALID_HANDLE;
+        }
+        return PROCESS_ID;
+    }
+
+    @Override
+    public long createFile(String fileName, int desiredAccess, int shareMode, long securityAttributesPointer,
+                           int creationDisposition, int flagsAndAttributes, long templateFile) {
+        String key = pipeKey(fileName);
+        synchronized (this) {
+            List<PipeEnd> instances = pipeInstances.get(key);
+            if (instances == null || instances.isEmpty()) {
+                return -ERROR_FILE_NOT_FOUND;
+            }
+            PipeEnd server = null;
+            for (PipeEnd instance : instances) {
+                if (!instance.connected) {
+                    server = instance;
+                    break;
+                }
+            }
+            if (server == null) {
+                return -ERROR_PIPE_BUSY;
+            }
+
+            PipeEnd client = new PipeEnd(key, false);
+            client.handle = newHandle(client);
+            client.peer = server;
+            client.connected = true;
+            server.peer = client;
+            server.connected = true;
+            if (server.pendingConnect != 0) {
+                complete(server, server.pendingConnect, 0, STATUS_SUCCESS);
+                server.pendingConnect = 0;
+            }
+            return client.handle;
+        }
+    }
+
+    @Override
+    public int setPipeMessageReadMode(long handle, int mode) {
+        synchronized (this) {
+            PipeEnd end = lookup(handle, PipeEnd.class);
+            if (end == null) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            end.messageMode = mode == PIPE_READMODE_MESSAGE;
+            return 0;
+        }
+    }
+
+    @Override
+    public int setFileCompletionNotificationModes(long handle, int flags) {
+        synchronized (this) {
+            PipeEnd end = lookup(handle, PipeEnd.class);
+            if (end == null) {
+                return -ERROR_INVALID_HANDLE;
+            }
+            end.skipCompletionPortOnSuccess = (flags & FILE_SKIP_COMPLETION_PORT_ON_SUCCESS) != 0;
+            return 0;
+        }
+    }
+
+    // Must hold the lock
+    private void closePipe(PipeEnd end) {
+        end.closed = true;
+        if (end.server) {
+            List<PipeEnd> instances = pipeInstances.get(end.name);
+            if (instances != null) {
+                instances.remove(end);
+                if (instances.isEmpty()) {
+                    pipeInstances.remove(end.name);
+                }
+            }
+        }
+        if (end.pendingConnect != 0) {
+            complete(end, end.pendingConnect, 0, STATUS_CANCELLED);
+            end.pendingConnect = 0;
+        }
+        abortReads(end, STATUS_CANCELLED);
+        end.inbound.clear();
+
+        PipeEnd peer = end.peer;
+        if (peer != null && !peer.closed) {
+            peer.peerClosed = true;
+            // Pending reads of the peer complete with zero bytes, just like ERROR_BROKEN_PIPE.
+            abortReads(peer, STATUS_PIPE_BROKEN);
+        }
+    }
+
+    // Must hold the lock
+    private void abortReads(PipeEnd end, long status) {
+        Long overlappedPointer;
+        while ((overlappedPointer = end.pendingReads.poll()) != null) {
+            complete(end, overlappedPointer, 0, status);
+        }
+    }
+
+    // Must hold the lock
+    private void deliver(PipeEnd end) {
+        while (!end.pendingReads.isEmpty() && !end.inbound.isEmpty()) {
+            long overlappedPointer = end.pendingReads.poll();
+            int read = fill(end, overlappedPointer);
+            complete(end, overlappedPointer, read, STATUS_SUCCESS);
+        }
+    }
+
+    // Must hold the lock
+    private static int fill(PipeEnd end, long overlappedPointer) {
+        long bufferAddress = getPointer(overlappedPointer + HEADER_BUFFER);
+        int bufferSize = PlatformDependent.getInt(overlappedPointer + HEADER_BUFFER_SIZE);
+        int total = 0;
+        while (total < bufferSize && !end.inbound.isEmpty()) {
+            byte[] chunk = end.inbound.peek();
+            int length = Math.min(chunk.length - end.inboundOffset, bufferSize - total);
+            PlatformDependent.copyMemory(chunk, end.inboundOffset, bufferAddress + total, length);
+            total += length;
+            end.inboundOffset += length;
+            if (end.inboundOffset == chunk.length) {
+                end.inbound.poll();
+                end.inboundOffset = 0;
+            }
+            if (end.messageMode) {
+                // Never read across message boundaries, the remaining part of a message is read next time.
+                break;
+            }
+        }
+        return total;
+    }
+
+    // Must hold the lock
+    private void completeImmediately(PipeEnd end, long overlappedPointer, int numberOfBytesTransferred) {
+        if (end.skipCompletionPortOnSuccess) {
+            // FILE_SKIP_COMPLETION_PORT_ON_SUCCESS: only the OVERLAPPED structure is updated, no packet is queued.
+            putPointer(overlappedPointer + OVERLAPPED_INTERNAL, STATUS_SUCCESS);
+            putPointer(overlappedPointer + OVERLAPPED_INTERNAL_HIGH, numberOfBytesTransferred);
+        } else {
+            complete(end, overlappedPointer, numberOfBytesTransferred, STATUS_SUCCESS);
+        }
+    }
+
+    // Must hold the lock
+    private void complete(PipeEnd end, long overlappedPointer, int numberOfBytesTransferred, long status) {
+        // Like the kernel, report the result in the OVERLAPPED structure as well.
+        putPointer(overlappedPointer + OVERLAPPED_INTERNAL, status);
+        putPointer(overlappedPointer + OVERLAPPED_INTERNAL_HIGH, numberOfBytesTransferred);
+
+        CompletionPort port = end.port;
+        if (port == null) {
+            return;
+        }
+        port.post(new Packet(end.completionKey, overlappedPointer, numberOfBytesTransferred, status,
+                System.nanoTime() + latencyNanos, nextSequence.getAndIncrement()));
+    }
+
+    private static void resetOverlapped(long overlappedPointer, long bufferAddress, int bufferSize) {
+        putPointer(overlappedPointer + OVERLAPPED_INTERNAL, 0);
+        putPointer(overlappedPointer + OVERLAPPED_INTERNAL_HIGH, 0);
+        putPointer(overlappedPointer + HEADER_BUFFER, bufferAddress);
+        PlatformDependent.putInt(overlappedPointer + HEADER_BUFFER_SIZE, bufferSize);
+    }
+
+    private long newHandle(Object object) {
+        // Like real handles, these are multiples of four.
+        long handle = nextHandle.getAndAdd(4);
+        handles.put(handle, object);
+        return handle;
+    }
+
+    private <T> T lookup(long handle, Class<T> type) {
+        Object object = handles.get(handle);
+        return type.isInstance(object) ? type.cast(object) : null;
+    }
+
+    private static String pipeKey(String name) {
+        // Pipe names are case insensitive.
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static long getPointer(long address) {
+        if (ADDRESS_SIZE == 8) {
+            return PlatformDependent.getLong(address);
+        }
+        return PlatformDependent.getInt(address);
+    }
+
+    private static void putPointer(long address, long value) {
+        if (ADDRESS_SIZE == 8) {
+            PlatformDependent.putLong(address, value);
+        } else {
+            PlatformDependent.putInt(address, (int) value);
+        }
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) & ~(alignment - 1);
+    }
+
+    private static long currentProcessId() {
+        // RuntimeMXBean.getName() returns pid@hostname on all known JVMs.
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int index = name.indexOf('@');
+        try {
+            return Long.parseLong(index > 0 ? name.substring(0, index) : name);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class CompletionPort {
+        final DelayQueue<Packet> queue = new DelayQueue<Packet>();
+        private volatile boolean closed;
+
+        void post(Packet packet) {
+            if (!closed) {
+                queue.add(packet);
+            }
+        }
+
+        void close() {
+            closed = true;
+            queue.add(Packet.CLOSED);
+        }
+    }
+
+    /**
+     * Auto-reset waitable timer. Like SetWaitableTimer, setting a new due time does not reset the signaled state.
+     */
+    private static final class WaitableTimer {
+        private boolean armed;
+        private long dueNanos;
+        private boolean signaled;
+
+        synchronized void set(long delayNanos) {
+            armed = true;
+            dueNanos = System.nanoTime() + delayNanos;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedException {
+            for (;;) {
+                if (armed && dueNanos - System.nanoTime() <= 0) {
+                    armed = false;
+                    signaled = true;
+                }
+                if (signaled) {
+                    signaled = false;
+                    return;
+                }
+                if (armed) {
+                    TimeUnit.NANOSECONDS.timedWait(this, dueNanos - System.nanoTime());
+                } else {
+                    wait();
+                }
+            }
+        }
+    }
+
+    private static final class PipeEnd {
+        final String name;
+        final boolean server;
+        long handle;
+
+        PipeEnd peer;
+        CompletionPort port;
+        long completionKey;
+
+        boolean connected;
+        boolean closed;
+        boolean peerClosed;
+        boolean messageMode;
+        boolean skipCompletionPortOnSuccess;
+        long pendingConnect;
+
+        final ArrayDeque<byte[]> inbound = new ArrayDeque<byte[]>();
+        int inboundOffset;
+        final ArrayDeque<Long> pendingReads = new ArrayDeque<Long>();
+
+        PipeEnd(String name, boolean server) {
+            this.name = name;
+            this.server = server;
+        }
+    }
+
+    private static final class Packet implements Delayed {
+        // Marks a closed completion port, sorts before every other packet.
+        static final Packet CLOSED = new Packet(0, 0, 0, STATUS_SUCCESS, Long.MIN_VALUE, Long.MIN_VALUE);
+
+        final long completionKey;
+        final long overlappedPointer;
+        final int numberOfBytesTransferred;
+        final long status;
+        final long deadlineNanos;
+        final long sequence;
+
+        Packet(long completionKey, long overlappedPointer, int numberOfBytesTransferred, long status,
+               long deadlineNanos, long sequence) {
+            this.completionKey = completionKey;
+            this.overlappedPointer = overlappedPointer;
+            this.numberOfBytesTransferred = numberOfBytesTransferred;
+            this.status = status;
+            this.deadlineNanos = deadlineNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            if (this == CLOSED) {
+                return 0;
+            }
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) {
+                return 0;
+            }
+            Packet other = (Packet) o;
+            if (this == CLOSED) {
+                return -1;
+            }
+            if (other == CLOSED) {
+                return 1;
+            }
+            long d = deadlineNanos - other.deadlineNanos;
+            if (d != 0) {
+                return d < 0 ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : 1;
+        }
+    }
+}
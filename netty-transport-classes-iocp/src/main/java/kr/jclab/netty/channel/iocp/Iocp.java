@@ -85,6 +85,14 @@ public final class Iocp {
         return UNAVAILABILITY_CAUSE;
     }
 
+    /**
+     * Returns the number of kernel handles owned by the transport in this process which were not closed yet, that is
+     * completion ports, pipes and events.
+     */
+    public static long openHandleCount() {
+        return AbstractWinHandle.openHandles();
+    }
+
     private Iocp() {
     }
 }
@@ -0,0 +1,138 @@
+package kr.jclab.netty.channel.iocp;
+
+/**
+ * Internal SPI which performs the actual Win32 calls behind {@link Native}.
+ * <p>
+ * All methods follow the conventions of the JNI layer: handles are returned as {@code long} values and failures are
+ * reported as the negative Windows error code.
+ * <p><strong>Internal usage only!</strong>
+ */
+interface IocpBackend {
+    /**
+     * Returns a short name which identifies this backend.
+     */
+    String name();
+
+    // Memory layout of OVERLAPPED_ENTRY and netty_iocp_native_overlapped_t
+
+    int sizeOfOverlappedEntry();
+    int offsetofOverlappedEntryCompletionKey();
+    int offsetofOverlappedEntryOverlapped();
+    int offsetofOverlappedEntryNumberOfBytesTransferred();
+    int sizeOfNativeOverlappedStruct();
+    int offsetofNativeOverlappedEventHandle();
+    int offsetofNativeOverlappedMagic();
+    int offsetofNativeOverlappedFileHandle();
+    int offsetofNativeOverlappedBufferSize();
+    int offsetofNativeOverlappedContextIndex();
+
+    // Constants
+
+    int pipeAccessDuplex();
+    int pipeAccessInbound();
+    int pipeAccessOutbound();
+    int fileFlagFirstPipeInstance();
+    int fileFlagOverlapped();
+    int flagGenericRead();
+    int flagGenericWrite();
+    int flagOpenExisting();
+    int flagPipeReadmodeMessage();
+    int flagPipeReadmodeByte();
+    int errorNotFound();
+    int errorIoPending();
+    int errorBrokenPipe();
+    int fileSkipCompletionPortOnSuccess();
+
+    // Calls
+
+    /**
+     * @return if 0 success, otherwise windows error code
+     */
+    int closeHandle(long handle);
+
+    /**
+     * @return if 0 success, otherwise windows error code
+     */
+    int wsaCloseEvent(long handle);
+
+    long createIoCompletionPort(long handle, long existingCompletionPort, long completionKey,
+                                int numberOfConcurrentThreads);
+
+    int getQueuedCompletionStatusEx(long handle, long entries, int count, int timeoutMillis);
+
+    int getQueuedCompletionStatusExBusyWait(long handle, long entries, int count);
+
+    int postQueuedCompletionStatus(long handle, int numberOfBytesTransferred, long completionKey,
+                                   long overlappedPointer);
+
+    /**
+     * Fill the given {@link OverlappedEntry} from the {@code OVERLAPPED_ENTRY} at the given address. Only used if
+     * the memory can not be read directly.
+     */
+    int readOverlappedEntry(long pointer, OverlappedEntry entry);
+
+    long createNamedPipe(String name, int openMode, int maxInstances, int outBufferSize, int inBufferSize,
+                         int defaultTimeout, long securityAttributesPointer);
+
+    /**
+     * @return 0 if the connect is pending, 1 if a client was already connected
+     */
+    int connectNamedPipe(long handle, long overlappedPointer);
+
+    long createEvent(long securityAttributePointer, boolean manualReset, boolean initialState, String name);
+
+    /**
+     * Create an auto-reset waitable timer with {@code CREATE_WAITABLE_TIMER_HIGH_RESOLUTION}.
+     *
+     * @return the handle, or the negative windows error code if high resolution timers are not supported (before
+     * Windows 10 1803)
+     */
+    long createHighResolutionTimer();
+
+    /**
+     * Signal the waitable timer once the given delay elapsed, replaces the previously set due time.
+     *
+     * @return if 0 success, otherwise windows error code
+     */
+    int setWaitableTimer(long handle, long delayNanos);
+
+    /**
+     * Block until the given object is signaled.
+     *
+     * @return if 0 success, otherwise windows error code
+     */
+    int waitForSingleObject(long handle);
+
+    int overlappedInitialize(long memory, long eventHandle, long fileHandle, long bufferAddress, int bufferSize,
+                             int contextIndex);
+
+    /**
+     * Read into the given memory, which is stored as buffer of the overlapped header.
+     *
+     * @return {@code -ERROR_IO_PENDING} if the read is pending, otherwise the number of bytes which were read
+     * immediately
+     */
+    int startOverlappedRead(long overlappedPointer, long bufferAddress, int bufferSize);
+
+    /**
+     * Write the given memory, which is stored as buffer of the overlapped header.
+     *
+     * @return {@code -ERROR_IO_PENDING} if the write is pending, otherwise the number of bytes which were written
+     * immediately
+     */
+    int startOverlappedWrite(long overlappedPointer, long bufferAddress, int dataSize);
+
+    int cancelIoEx(long handle, long overlappedPointer);
+
+    long getNamedPipeClientProcessId(long handle);
+
+    long createFile(String fileName, int desiredAccess, int shareMode, long securityAttributesPointer,
+                    int creationDisposition, int flagsAndAttributes, long templateFile);
+
+    int setPipeMessageReadMode(long handle, int mode);
+
+    /**
+     * @return if 0 success, otherwise windows error code
+     */
+    int setFileCompletionNotificationModes(long handle, int flags);
+}
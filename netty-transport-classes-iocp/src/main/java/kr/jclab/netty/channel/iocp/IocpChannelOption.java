@@ -4,4 +4,7 @@ import io.netty.channel.ChannelOption;
 
 public class IocpChannelOption {
     public static final ChannelOption<NativePointer> SECURITY_ATTRIBUTES = ChannelOption.valueOf("SECURITY_ATTRIBUTES");
+    public static final ChannelOption<Integer> READ_AHEAD_DEPTH = ChannelOption.valueOf("READ_AHEAD_DEPTH");
+    public static final ChannelOption<Boolean> ZERO_BYTE_READ = ChannelOption.valueOf("ZERO_BYTE_READ");
+    public static final ChannelOption<Integer> WRITE_PIPELINE_DEPTH = ChannelOption.valueOf("WRITE_PIPELINE_DEPTH");
 }
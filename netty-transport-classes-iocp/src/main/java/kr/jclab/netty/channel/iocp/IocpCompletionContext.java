@@ -1,5 +1,82 @@
 package kr.jclab.netty.channel.iocp;
 
-public class IocpCompletionContext {
-    private long nativePointer = 0;
+/**
+ * Per-operation context of one slot of an {@link OverlappedSlab}.
+ * <p>
+ * The index of the context is stored in the {@code netty_iocp_native_overlapped_t} header, so a completion can be
+ * routed to its channel and operation with a single array access.
+ * <p>
+ * A context is attached by the {@link io.netty.channel.EventLoop} of its channel but read by the loop which dequeues
+ * the completion, so the fields are volatile. {@link #channel()} is written last and read first.
+ */
+public final class IocpCompletionContext {
+    static final int OP_NONE = 0;
+    static final int OP_CONNECT = 1;
+    static final int OP_READ = 2;
+    static final int OP_WRITE = 3;
+
+    private final OverlappedSlab slab;
+    private final int index;
+    private final long memoryAddress;
+
+    private volatile AbstractIocpChannel channel;
+    private volatile int operation = OP_NONE;
+    private volatile NativeOverlapped overlapped;
+
+    IocpCompletionContext(OverlappedSlab slab, int index, long memoryAddress) {
+        this.slab = slab;
+        this.index = index;
+        this.memoryAddress = memoryAddress;
+    }
+
+    void attach(AbstractIocpChannel channel, int operation, NativeOverlapped overlapped) {
+        this.overlapped = overlapped;
+        this.operation = operation;
+        this.channel = channel;
+    }
+
+    void detach() {
+        this.channel = null;
+        this.operation = OP_NONE;
+        this.overlapped = null;
+    }
+
+    OverlappedSlab slab() {
+        return slab;
+    }
+
+    /**
+     * Returns the index of this context in its {@link OverlappedSlab}.
+     */
+    int index() {
+        return index;
+    }
+
+    /**
+     * Returns the address of the {@code netty_iocp_native_overlapped_t} header of this context.
+     */
+    long memoryAddress() {
+        return memoryAddress;
+    }
+
+    AbstractIocpChannel channel() {
+        return channel;
+    }
+
+    int operation() {
+        return operation;
+    }
+
+    NativeOverlapped overlapped() {
+        return overlapped;
+    }
+
+    @Override
+    public String toString() {
+        return "IocpCompletionContext{" +
+                "index=" + index +
+                ", operation=" + operation +
+                ", channel=" + channel +
+                '}';
+    }
 }
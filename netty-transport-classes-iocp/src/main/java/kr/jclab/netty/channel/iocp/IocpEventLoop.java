@@ -22,6 +22,9 @@ import io.netty.channel.EventLoopTaskQueueFactory;
 import io.netty.channel.SelectStrategy;
 import io.netty.channel.SingleThreadEventLoop;
 import io.netty.util.IntSupplier;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.RejectedExecutionHandler;
 import io.netty.util.internal.ObjectUtil;
 import io.netty.util.internal.PlatformDependent;
@@ -30,10 +33,14 @@ import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Math.min;
@@ -41,13 +48,30 @@ import static java.lang.Math.min;
 /**
  * {@link EventLoop} which uses IOCP under the covers. Only works on Windows.
  *
- * WARNING
- * - Due to IOCP limitations, the minimum resolution of the timer is 1 ms.
+ * The loop always blocks in GetQueuedCompletionStatusEx with INFINITE and is only woken up by completions,
+ * {@link Native#IOCP_CONTEXT_WAKEUP} packets or {@link Native#IOCP_CONTEXT_TIMER} packets posted by its
+ * {@link IocpTimer} once the next scheduled task is due. Scheduled tasks run with the precision of a high resolution
+ * waitable timer, below a millisecond, on Windows 10 1803 and later, and with the precision of the system timer
+ * interval (1 to 15.6 ms) before.
  */
-class IocpEventLoop extends SingleThreadEventLoop {
+public final class IocpEventLoop extends SingleThreadEventLoop {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(IocpEventLoop.class);
+    // Bounds of the OVERLAPPED_ENTRY array when maxEvents is 0.
+    private static final int MIN_EVENTS = 64;
+    private static final int MAX_EVENTS = 65536;
+    // Upper bound of a single wait in milliseconds, 0 (default) waits until the next deadline or forever when idle.
     private static final int IOCP_WAIT_MILLIS_THRESHOLD =
-            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.iocpWaitThreshold", 10);
+            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.iocpWaitThreshold", 0);
+    // Process operations which complete immediately inline instead of waiting for their completion packet.
+    private static final boolean SKIP_COMPLETION_PORT_ON_SUCCESS =
+            SystemPropertyUtil.getBoolean("kr.jclab.netty.channel.iocp.skipCompletionPortOnSuccess", true);
+    // How long a loop which shuts down keeps dequeuing completions of operations which are still pending, in
+    // milliseconds. Accepted pipes of other loops stay attached to its completion port until they are closed.
+    private static final int SHUTDOWN_DRAIN_MILLIS = Math.max(0,
+            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.shutdownDrainMillis", 5000));
+    // Upper bound of a single wait while draining. The loops of accepted pipes release the slots of completions which
+    // were handed over to them without posting a packet, so the drain must look at the slab again now and then.
+    private static final int SHUTDOWN_DRAIN_POLL_MILLIS = 10;
 
     static {
         // Ensure JNI is initialized by the time this class is loaded by this time!
@@ -56,20 +80,42 @@ class IocpEventLoop extends SingleThreadEventLoop {
     }
 
     private final WinHandle iocpHandle;
-//    private final IntObjectMap<AbstractEpollChannel> channels = new IntObjectHashMap<AbstractEpollChannel>(4096);
-    private final boolean allowGrowing;
+    private final IocpTimer.Timer timer;
+    private final NativeMemoryBudget memoryBudget;
+    private final OverlappedSlab overlappedSlab;
+    private final OverlappedPool overlappedPool;
+    // Keyed by the file handle of the channel. Only accessed from the EventLoop thread.
+    private final LongObjectMap<AbstractIocpChannel> channels = new LongObjectHashMap<AbstractIocpChannel>(4096);
     private final OverlappedEntryArray events;
+    // Channels which asked to be called once the current processReady pass handled all completions.
+    private final ArrayList<AbstractIocpChannel> batchChannels = new ArrayList<AbstractIocpChannel>();
+    private boolean inCompletionBatch;
+    // Completions of channels of this loop which were dequeued by other loops.
+    private final CompletionHandover handover = new CompletionHandover();
+    private final OverlappedEntry handoverEntry = new OverlappedEntry();
+    private final Runnable handoverTask = new Runnable() {
+        @Override
+        public void run() {
+            processHandover();
+        }
+    };
+    // Loops whose drain task must be scheduled once the current batch was handled.
+    private final ArrayList<IocpEventLoop> handoverLoops = new ArrayList<IocpEventLoop>();
+    // Loops whose completion ports the accepted pipes of this loop are attached to, confined to this loop.
+    private final ArrayList<IocpEventLoop> completionLoops = new ArrayList<IocpEventLoop>();
 
     // These are initialized on first use
 //    private IovArray iovArray;
 //    private NativeDatagramPacketArray datagramPacketArray;
 
     private final SelectStrategy selectStrategy;
+    // Non-null if selectStrategy wants to know about handled I/O completions.
+    private final AdaptiveSelectStrategyFactory.AdaptiveSelectStrategy adaptiveSelectStrategy;
     private final IntSupplier selectNowSupplier = new IntSupplier() {
         @Override
         public int get() throws Exception {
-//            return epollWaitNow();
-            return 0;
+            // Harvest completions without blocking so I/O is not starved while tasks are pending.
+            return iocpWaitNow();
         }
     };
 
@@ -82,27 +128,36 @@ class IocpEventLoop extends SingleThreadEventLoop {
     //    other value T    when EL is waiting with wakeup scheduled at time T
     private final AtomicLong nextWakeupNanos = new AtomicLong(AWAKE);
     private boolean pendingWakeup;
-
-    private final ConcurrentHashMap<Long, AbstractIocpChannel> iocpChannels = new ConcurrentHashMap<>();
+    private volatile int ioRatio = 50;
+    // Only written by the EventLoop thread.
+    private volatile long spuriousWakeups;
+    // Number of IOCP_CONTEXT_HANDLE completions of the last processed batch.
+    private int ioCompletions;
 
     IocpEventLoop(EventLoopGroup parent, Executor executor, int maxEvents,
                   SelectStrategy strategy, RejectedExecutionHandler rejectedExecutionHandler,
-                  EventLoopTaskQueueFactory taskQueueFactory, EventLoopTaskQueueFactory tailTaskQueueFactory) {
+                  EventLoopTaskQueueFactory taskQueueFactory, EventLoopTaskQueueFactory tailTaskQueueFactory,
+                  NativeMemoryBudget memoryBudget) {
         super(parent, executor, false, newTaskQueue(taskQueueFactory), newTaskQueue(tailTaskQueueFactory),
                 rejectedExecutionHandler);
         selectStrategy = ObjectUtil.checkNotNull(strategy, "strategy");
+        adaptiveSelectStrategy = strategy instanceof AdaptiveSelectStrategyFactory.AdaptiveSelectStrategy ?
+                (AdaptiveSelectStrategyFactory.AdaptiveSelectStrategy) strategy : null;
+        this.memoryBudget = ObjectUtil.checkNotNull(memoryBudget, "memoryBudget");
+        overlappedSlab = new OverlappedSlab(memoryBudget);
+        overlappedPool = new OverlappedPool(overlappedSlab);
         if (maxEvents == 0) {
-            allowGrowing = true;
-            events = new OverlappedEntryArray(4096);
+            events = new OverlappedEntryArray(4096, MIN_EVENTS, MAX_EVENTS, memoryBudget);
         } else {
-            allowGrowing = false;
-            events = new OverlappedEntryArray(maxEvents);
+            // maxEvents is the upper bound, the array may still shrink when it is mostly unused.
+            events = new OverlappedEntryArray(maxEvents, min(MIN_EVENTS, maxEvents), maxEvents, memoryBudget);
         }
         boolean success = false;
 
         WinHandle iocpHandle = null;
         try {
             this.iocpHandle = iocpHandle = Native.newIoCompletionPort(0, 0);
+            this.timer = IocpTimer.newTimer(iocpHandle);
             success = true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -208,25 +263,93 @@ class IocpEventLoop extends SingleThreadEventLoop {
 
     void add(AbstractIocpChannel ch) throws IOException {
         assert inEventLoop();
+        AbstractWinHandle handle = ch.handle();
+        if (handle != null) {
+            // An accepted pipe: its handle stays attached to the completion port of the server's loop (see
+            // iocpChangeHandler), but the channel is registered with this loop, which also removes it again.
+            AbstractIocpChannel old = channels.put(handle.longValue(), ch);
+            assert old == null || !old.isOpen();
+            IocpEventLoop completionLoop = ch.completionLoop();
+            if (completionLoop != this && !completionLoops.contains(completionLoop)) {
+                completionLoops.add(completionLoop);
+            }
+        }
     }
 
     void iocpRegister(WinHandle pipeHandle, AbstractIocpChannel ch) throws IOException {
         assert inEventLoop();
-        iocpChannels.put(pipeHandle.longValue(), ch);
-        Native.attachIoCompletionPort(pipeHandle, iocpHandle, Native.IOCP_CONTEXT_HANDLE);
+        long handle = pipeHandle.longValue();
+        AbstractIocpChannel old = channels.put(handle, ch);
+        ch.completionLoop(this);
+        try {
+            Native.attachIoCompletionPort(pipeHandle, iocpHandle, Native.IOCP_CONTEXT_HANDLE);
+        } catch (IOException e) {
+            if (old != null) {
+                channels.put(handle, old);
+            } else {
+                channels.remove(handle);
+            }
+            throw e;
+        }
+        if (SKIP_COMPLETION_PORT_ON_SUCCESS) {
+            try {
+                Native.setFileCompletionNotificationModes(pipeHandle, Native.FILE_SKIP_COMPLETION_PORT_ON_SUCCESS);
+                pipeHandle.setSkipCompletionPortOnSuccess(true);
+            } catch (IOException e) {
+                logger.debug("Failed to set FILE_SKIP_COMPLETION_PORT_ON_SUCCESS, waiting for completion packets", e);
+            }
+        }
+
+        // We either expect to have no Channel in the map with the same handle or that the handle of the old Channel
+        // is already closed.
+        assert old == null || !old.isOpen();
     }
 
-    // Only use for named pipe server
+    /**
+     * Hand the connected handle of a named pipe server over to the accepted channel. The handle stays attached to the
+     * completion port of this loop, the channel is added to the loop it is registered with.
+     */
     void iocpChangeHandler(WinHandle pipeHandle, AbstractIocpChannel ch) {
-        iocpChannels.put(pipeHandle.longValue(), ch);
+        assert inEventLoop();
+        channels.remove(pipeHandle.longValue());
+        ch.completionLoop(this);
+    }
+
+    /**
+     * Returns the {@link NativeMemoryBudget} of the group of this loop.
+     */
+    NativeMemoryBudget memoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Returns the {@link OverlappedSlab} for the headers of operations on handles attached to this loop.
+     */
+    OverlappedSlab overlappedSlab() {
+        return overlappedSlab;
+    }
+
+    /**
+     * Returns the {@link OverlappedPool} to acquire the overlappeds of operations on handles attached to this loop
+     * from.
+     */
+    OverlappedPool overlappedPool() {
+        return overlappedPool;
     }
 
     void remove(AbstractIocpChannel ch) {
+        assert inEventLoop();
         AbstractWinHandle handle = ch.handle();
-        if (handle != null) {
-            AbstractIocpChannel removed = iocpChannels.remove(handle);
+        if (handle == null) {
+            return;
         }
-        // nothing. just close handle
+        long key = handle.longValue();
+        AbstractIocpChannel old = channels.remove(key);
+        if (old != null && old != ch) {
+            // The handle value was already reused by another Channel of this loop, put it back.
+            channels.put(key, old);
+        }
+        // The completion port association is dropped by the OS once the handle is closed.
     }
 
 //    /**
@@ -285,51 +408,22 @@ class IocpEventLoop extends SingleThreadEventLoop {
 
     @Override
     public int registeredChannels() {
-        return 0;
-//        return channels.size();
+        return channels.size();
     }
 
     @Override
     public Iterator<Channel> registeredChannelsIterator() {
-//        assert inEventLoop();
-//        IntObjectMap<AbstractEpollChannel> ch = channels;
-//        if (ch.isEmpty()) {
-//            return ChannelsReadOnlyIterator.empty();
-//        }
-//        return new ChannelsReadOnlyIterator<AbstractEpollChannel>(ch.values());
-        return null;
-    }
-
-    // ... : count
-    // LSB : used timer
-    private long iocpWait(long deadlineNanos) throws IOException {
-        if (deadlineNanos == NONE) {
-            int value = Native.iocpWait(iocpHandle, events, IOCP_WAIT_MILLIS_THRESHOLD);
-            if (value >= 0) {
-                return ((long) value) << 1;
-            }
-            return value;
-        }
-        int armTimer = 0;
-        long totalDelay = deadlineToDelayNanos(deadlineNanos);
-        int delayMillis = (int) min(totalDelay / 1000000L, Integer.MAX_VALUE);
-        if (delayMillis == 0) {
-            delayMillis = 1;
-            armTimer = 1;
-        } else if (delayMillis >= IOCP_WAIT_MILLIS_THRESHOLD) {
-            delayMillis = IOCP_WAIT_MILLIS_THRESHOLD;
-        } else {
-            armTimer = 1;
-        }
-        int value = Native.iocpWait(iocpHandle, events, delayMillis);
-        if (value >= 0) {
-            return ((long) value) << 1 | armTimer;
+        assert inEventLoop();
+        LongObjectMap<AbstractIocpChannel> ch = channels;
+        if (ch.isEmpty()) {
+            return ChannelsReadOnlyIterator.empty();
         }
-        return value;
+        return new ChannelsReadOnlyIterator<AbstractIocpChannel>(ch.values());
     }
 
-    private int iocpWaitNoTimerChange() throws IOException {
-        return Native.iocpWait(iocpHandle, events, false);
+    private int iocpWait() throws IOException {
+        return Native.iocpWait(iocpHandle, events,
+                IOCP_WAIT_MILLIS_THRESHOLD > 0 ? IOCP_WAIT_MILLIS_THRESHOLD : Native.IOCP_WAIT_INFINITE);
     }
 
     private int iocpWaitNow() throws IOException {
@@ -351,6 +445,7 @@ class IocpEventLoop extends SingleThreadEventLoop {
         for (;;) {
             try {
                 int strategy = selectStrategy.calculateStrategy(selectNowSupplier, hasTasks());
+                boolean blocked = false;
                 switch (strategy) {
                     case SelectStrategy.CONTINUE:
                         continue;
@@ -384,16 +479,26 @@ class IocpEventLoop extends SingleThreadEventLoop {
                         nextWakeupNanos.set(curDeadlineNanos);
                         try {
                             if (!hasTasks()) {
-                                if (curDeadlineNanos == prevDeadlineNanos) {
-                                    // No timer activity needed
-                                    strategy = iocpWaitNoTimerChange();
+                                if (hasScheduledTaskDue(curDeadlineNanos)) {
+                                    strategy = iocpWaitNow();
                                 } else {
-                                    // Timerfd needs to be re-armed or disarmed
-                                    long result = iocpWait(curDeadlineNanos);
-                                    // The result contains the actual return value and if a timer was used or not.
-                                    // We need to "unpack" using the helper methods exposed in Native.
-                                    strategy = ((int) (result >> 1));
-                                    prevDeadlineNanos = ((result & 1) != 0) ? curDeadlineNanos : NONE;
+                                    if (curDeadlineNanos != prevDeadlineNanos) {
+                                        // The timer needs to be re-armed or disarmed
+                                        if (curDeadlineNanos == NONE) {
+                                            timer.disarm();
+                                        } else {
+                                            // The deadline is relative to the start of the executor, not to
+                                            // System.nanoTime().
+                                            timer.arm(deadlineToDelayNanos(curDeadlineNanos));
+                                        }
+                                        prevDeadlineNanos = curDeadlineNanos;
+                                    }
+                                    strategy = iocpWait();
+                                    blocked = true;
+                                }
+                                if (strategy == 0 && !hasTasks() && !hasScheduledTaskDue(curDeadlineNanos)) {
+                                    // Nothing completed and nothing became runnable.
+                                    spuriousWakeups++;
                                 }
                             }
                         } finally {
@@ -407,18 +512,35 @@ class IocpEventLoop extends SingleThreadEventLoop {
                     default:
                 }
 
-                try {
-                    if (strategy > 0 && processReady(events, strategy)) {
-                        prevDeadlineNanos = NONE;
+                final int ioRatio = this.ioRatio;
+                if (ioRatio == 100) {
+                    try {
+                        if (strategy > 0 && processReady(events, strategy, blocked)) {
+                            // The timer is disarmed once it fired.
+                            prevDeadlineNanos = NONE;
+                        }
+                    } finally {
+                        // Ensure we always run tasks.
+                        runAllTasks();
                     }
-                } finally {
-                    // Ensure we always run tasks.
-                    runAllTasks();
+                } else if (strategy > 0) {
+                    final long ioStartTime = System.nanoTime();
+                    try {
+                        if (processReady(events, strategy, blocked)) {
+                            prevDeadlineNanos = NONE;
+                        }
+                    } finally {
+                        // Ensure we always run tasks.
+                        final long ioTime = System.nanoTime() - ioStartTime;
+                        runAllTasks(ioTime * (100 - ioRatio) / ioRatio);
+                    }
+                } else {
+                    runAllTasks(0); // This will run the minimum number of tasks
                 }
 
-                if (allowGrowing && strategy == events.length()) {
-                    //increase the size of the array as we needed the whole space for the events
-                    events.increase();
+                if (strategy >= 0) {
+                    // Grow the array if we needed the whole space for the events, shrink it if mostly unused.
+                    events.record(strategy);
                 }
             } catch (Error e) {
                 throw e;
@@ -442,6 +564,98 @@ class IocpEventLoop extends SingleThreadEventLoop {
         }
     }
 
+    /**
+     * Returns the percentage of the desired amount of time spent for I/O in the event loop.
+     */
+    public int getIoRatio() {
+        return ioRatio;
+    }
+
+    /**
+     * Sets the percentage of the desired amount of time spent for I/O in the event loop.  The default value is
+     * {@code 50}, which means the event loop will try to spend the same amount of time for I/O as for non-I/O tasks.
+     * With {@code 100} all tasks are run after every I/O round without a time limit.
+     */
+    public void setIoRatio(int ioRatio) {
+        if (ioRatio <= 0 || ioRatio > 100) {
+            throw new IllegalArgumentException("ioRatio: " + ioRatio + " (expected: 0 < ioRatio <= 100)");
+        }
+        this.ioRatio = ioRatio;
+    }
+
+    /**
+     * Returns the current number of completions which can be dequeued at once.
+     */
+    public int completionArraySize() {
+        return events.capacity();
+    }
+
+    /**
+     * Returns the largest number of completions which were dequeued at once since this loop started.
+     */
+    public int completionArrayHighWaterMark() {
+        return events.highWaterMark();
+    }
+
+    /**
+     * Returns the number of overlapped structures which were reused from the pool of this loop.
+     */
+    public long overlappedPoolHits() {
+        return overlappedPool.hits();
+    }
+
+    /**
+     * Returns the number of overlapped structures which had to be allocated as the pool of this loop had none.
+     */
+    public long overlappedPoolMisses() {
+        return overlappedPool.misses();
+    }
+
+    /**
+     * Returns the native memory in bytes which is held by the idle overlapped structures pooled by this loop.
+     */
+    public long overlappedPoolRetainedBytes() {
+        return overlappedPool.retainedBytes();
+    }
+
+    /**
+     * Returns a description of every overlapped of the channels of this loop which was acquired and not released yet,
+     * including the ones of accepted pipes whose handles are attached to the completion port of another loop. The
+     * list is collected by a task on this loop, so the reference counts are read by the thread which owns them.
+     * Meant for diagnosing leaks, see also {@link MemoryLeakDetector}.
+     */
+    public Future<List<String>> outstandingOverlappedOperations() {
+        if (inEventLoop()) {
+            return newSucceededFuture(outstandingOverlappedOperations0());
+        }
+        return submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return outstandingOverlappedOperations0();
+            }
+        });
+    }
+
+    private List<String> outstandingOverlappedOperations0() {
+        List<String> outstanding = overlappedSlab.outstanding(this);
+        for (IocpEventLoop completionLoop : completionLoops) {
+            outstanding.addAll(completionLoop.overlappedSlab().outstanding(this));
+        }
+        return outstanding;
+    }
+
+    private static boolean hasScheduledTaskDue(long deadlineNanos) {
+        return deadlineNanos != NONE && deadlineToDelayNanos(deadlineNanos) <= 0;
+    }
+
+    /**
+     * Returns the number of times the loop returned from a blocking wait without any I/O completion, task or due
+     * scheduled task to process, for example because of a wakeup or timer packet which had nothing left to do.
+     */
+    public long spuriousWakeups() {
+        return spuriousWakeups;
+    }
+
     /**
      * Visible only for testing!
      */
@@ -458,38 +672,163 @@ class IocpEventLoop extends SingleThreadEventLoop {
     }
 
     private void closeAll() {
-//        // Using the intermediate collection to prevent ConcurrentModificationException.
-//        // In the `close()` method, the channel is deleted from `channels` map.
-//        AbstractEpollChannel[] localChannels = channels.values().toArray(new AbstractEpollChannel[0]);
-//
-//        for (AbstractEpollChannel ch: localChannels) {
-//            ch.unsafe().close(ch.unsafe().voidPromise());
-//        }
+        // Using the intermediate collection to prevent ConcurrentModificationException.
+        // In the `close()` method, the channel is deleted from `channels` map.
+        AbstractIocpChannel[] localChannels = channels.values().toArray(new AbstractIocpChannel[0]);
+
+        for (AbstractIocpChannel ch: localChannels) {
+            ch.unsafe().close(ch.unsafe().voidPromise());
+        }
+    }
+
+    /**
+     * Returns {@code true} while completions dequeued by a single wait are being handled.
+     */
+    boolean inCompletionBatch() {
+        return inCompletionBatch;
+    }
+
+    /**
+     * Call {@link AbstractIocpChannel#completionBatchDone()} of the given channel once all completions of the current
+     * batch were handled. Must only be called while {@link #inCompletionBatch()}.
+     */
+    void afterCompletionBatch(AbstractIocpChannel ch) {
+        assert inCompletionBatch;
+        if (!ch.completionBatchPending) {
+            ch.completionBatchPending = true;
+            batchChannels.add(ch);
+        }
+    }
+
+    private void completionBatchDone() {
+        inCompletionBatch = false;
+        for (int i = 0; i < batchChannels.size(); i++) {
+            AbstractIocpChannel ch = batchChannels.get(i);
+            ch.completionBatchPending = false;
+            try {
+                ch.completionBatchDone();
+            } catch (Exception e) {
+                logger.error("unhandled exception in completionBatchDone", e);
+            }
+        }
+        batchChannels.clear();
+    }
+
+    // Returns true if a timer event was encountered
+    private boolean processReady(OverlappedEntryArray events, int ready, boolean blocked) {
+        inCompletionBatch = true;
+        boolean timerFired;
+        try {
+            timerFired = processCompletions(events, ready);
+        } finally {
+            completionBatchDone();
+            scheduleHandovers();
+        }
+        if (ioCompletions > 0) {
+            completionsProcessed();
+        } else if (blocked && !hasTasks() && !hasScheduledTaskDue(scheduledTaskDeadline())) {
+            // Only wakeup or timer packets which left nothing to do.
+            spuriousWakeups++;
+        }
+        return timerFired;
+    }
+
+    private void completionsProcessed() {
+        if (adaptiveSelectStrategy != null) {
+            adaptiveSelectStrategy.completionsProcessed();
+        }
+    }
+
+    private long scheduledTaskDeadline() {
+        long deadlineNanos = nextScheduledTaskDeadlineNanos();
+        return deadlineNanos == -1L ? NONE : deadlineNanos;
+    }
+
+    private void scheduleHandovers() {
+        for (int i = 0; i < handoverLoops.size(); i++) {
+            IocpEventLoop loop = handoverLoops.get(i);
+            try {
+                loop.execute(loop.handoverTask);
+            } catch (RejectedExecutionException e) {
+                // The loop is shutting down, it takes the completions in cleanup().
+                logger.debug("Failed to hand over completions to {}", loop, e);
+            }
+        }
+        handoverLoops.clear();
     }
 
-    // Returns true if a timerFd event was encountered
-    private boolean processReady(OverlappedEntryArray events, int ready) {
+    /**
+     * Handle the completions which other loops dequeued for channels of this loop, as one batch.
+     */
+    private void processHandover() {
+        CompletionHandover.Completions completions = handover.take();
+        inCompletionBatch = true;
+        try {
+            for (int i = 0; i < completions.size(); i++) {
+                completions.decode(i, handoverEntry);
+                IocpCompletionContext context = completions.context(i);
+                AbstractIocpChannel channel = context.channel();
+                if (channel == null) {
+                    logger.warn("released overlapped object: {}", handoverEntry);
+                    continue;
+                }
+                handleEvent(channel, context, handoverEntry);
+            }
+        } finally {
+            completions.clear();
+            completionBatchDone();
+        }
+        completionsProcessed();
+    }
+
+    private static void handleEvent(AbstractIocpChannel channel, IocpCompletionContext context, OverlappedEntry entry) {
+        try {
+            channel.handleEvent(context, entry);
+        } catch (Exception e) {
+            logger.error("unhandled exception in handleEvent", e);
+        }
+    }
+
+    private boolean processCompletions(OverlappedEntryArray events, int ready) {
         boolean timerFired = false;
+        ioCompletions = 0;
         for (int i = 0; i < ready; i ++) {
-            OverlappedEntry entry = events.getEntry(i);
+            OverlappedEntry entry = events.entry(i);
             if (entry.getCompletionKey() == Native.IOCP_CONTEXT_WAKEUP) {
                 pendingWakeup = false;
+            } else if (entry.getCompletionKey() == Native.IOCP_CONTEXT_TIMER) {
+                timerFired = true;
             } else if (entry.getCompletionKey() == Native.IOCP_CONTEXT_HANDLE) {
+                ioCompletions++;
                 if (!entry.isOverlappedValid()) {
                     logger.warn("invalid overlapped object: " + entry.getOverlappedPointer());
                     continue;
                 }
 
-                AbstractIocpChannel channel = iocpChannels.get(entry.getFileHandle());
+                IocpCompletionContext context = overlappedSlab.get(entry.getContextIndex());
+                if (context == null || context.memoryAddress() != entry.getOverlappedPointer()) {
+                    logger.warn("unknown overlapped object: {}", entry);
+                    continue;
+                }
+                AbstractIocpChannel channel = context.channel();
                 if (channel == null) {
-                    logger.warn("removed channel", entry);
+                    logger.warn("released overlapped object: {}", entry);
                     continue;
                 }
 
-                try {
-                    channel.handleEvent(entry);
-                } catch (Exception e) {
-                    logger.error("unhandled exception in handleEvent", e);
+                IocpEventLoop owner = (IocpEventLoop) channel.eventLoop();
+                if (owner == this) {
+                    handleEvent(channel, context, entry);
+                } else {
+                    // The handle of an accepted channel stays attached to the completion port of the server channel,
+                    // hand the completion over so the operations of a channel are only ever touched by its own loop.
+                    int result = owner.handover.add(context, entry);
+                    if (result == CompletionHandover.SCHEDULE) {
+                        handoverLoops.add(owner);
+                    } else if (result == CompletionHandover.CLOSED) {
+                        // The owning loop was shut down and closed the channel, only the operation is left.
+                        context.overlapped().releaseOrphaned();
+                    }
                 }
             }
         }
@@ -557,25 +896,15 @@ class IocpEventLoop extends SingleThreadEventLoop {
     @Override
     protected void cleanup() {
         try {
-            // Ensure any in-flight wakeup writes have been performed prior to closing eventFd.
-            while (pendingWakeup) {
-                try {
-                    int count = iocpWaitTimeboxed();
-                    if (count == 0) {
-                        // We timed-out so assume that the write we're expecting isn't coming
-                        break;
-                    }
-                    for (int i = 0; i < count; i++) {
-                        OverlappedEntry entry = events.getEntry(i);
-                        if (entry.getCompletionKey() == Native.IOCP_CONTEXT_WAKEUP) {
-                            pendingWakeup = false;
-                            break;
-                        }
-                    }
-                } catch (IOException ignore) {
-                    // ignore
-                }
-            }
+            // No timer packet must be posted once the completion port is closed.
+            timer.close();
+            // Completions which other loops dequeue for the (closed) channels of this loop from now on are released by
+            // them, the ones handed over already are released here.
+            handover.close();
+            processHandover();
+            // Pooled overlappeds give their slots back, only the ones with an operation pending keep theirs.
+            overlappedPool.free();
+            drainPendingOperations();
             try {
                 iocpHandle.close();
             } catch (IOException e) {
@@ -583,6 +912,40 @@ class IocpEventLoop extends SingleThreadEventLoop {
             }
         } finally {
             events.free();
+            overlappedPool.free();
+            // The chunks are only freed once the last slot was released, a header of an operation which is still
+            // pending stays valid.
+            overlappedSlab.free();
+        }
+    }
+
+    /**
+     * Dequeue completions until no operation uses a header of the slab anymore and any in-flight wakeup was seen.
+     * The cancelled operations of the closed channels of this loop complete right away, but accepted pipes of other
+     * loops keep their handles attached to the completion port of this loop until they are closed.
+     */
+    private void drainPendingOperations() {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DRAIN_MILLIS);
+        while (pendingWakeup || overlappedSlab.used() > 0) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                if (overlappedSlab.used() > 0) {
+                    logger.warn("{} overlapped operations of {} are still pending, their completions are not " +
+                            "delivered and their memory is not freed", overlappedSlab.used(), this);
+                }
+                // We timed-out so assume that the wakeup we're expecting isn't coming
+                return;
+            }
+            try {
+                int ready = Native.iocpWait(iocpHandle, events, (int) Math.max(1,
+                        Math.min(SHUTDOWN_DRAIN_POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(remainingNanos))));
+                if (ready > 0) {
+                    processReady(events, ready, false);
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to drain the completion port.", e);
+                return;
+            }
         }
     }
 }
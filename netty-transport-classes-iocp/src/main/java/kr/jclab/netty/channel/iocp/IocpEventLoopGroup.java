@@ -26,6 +26,7 @@ import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorChooserFactory;
 import io.netty.util.concurrent.RejectedExecutionHandler;
 import io.netty.util.concurrent.RejectedExecutionHandlers;
+import io.netty.util.internal.SystemPropertyUtil;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
@@ -33,13 +34,24 @@ import java.util.concurrent.ThreadFactory;
 /**
  * {@link EventLoopGroup} which uses epoll under the covers. Because of this
  * it only works on linux.
+ * <p>
+ * The native memory which the loops of a group allocate themselves is limited by a shared budget, see
+ * {@link #setNativeMemoryBudget(long)}. The initial limit is taken from the
+ * {@code kr.jclab.netty.channel.iocp.nativeMemoryBudget} system property in bytes, 0 (the default) means unlimited.
  */
 public final class IocpEventLoopGroup extends MultithreadEventLoopGroup {
+    private static final long DEFAULT_NATIVE_MEMORY_BUDGET = Math.max(0,
+            SystemPropertyUtil.getLong("kr.jclab.netty.channel.iocp.nativeMemoryBudget", 0));
+
     static {
         // Ensure JNI is initialized by the time this class is loaded.
         Iocp.ensureAvailability();
     }
 
+    // Created by the first newChild(...) call, which happens in the super constructor. Must not have an initializer,
+    // it would overwrite the budget once the super constructor returned.
+    private NativeMemoryBudget memoryBudget;
+
     /**
      * Create a new instance using the default number of threads and the default {@link ThreadFactory}.
      */
@@ -158,6 +170,89 @@ public final class IocpEventLoopGroup extends MultithreadEventLoopGroup {
                 tailTaskQueueFactory);
     }
 
+    /**
+     * Sets the percentage of the desired amount of time spent for I/O in the child event loops.  The default value is
+     * {@code 50}, which means the event loop will try to spend the same amount of time for I/O as for non-I/O tasks.
+     */
+    public void setIoRatio(int ioRatio) {
+        for (EventExecutor e: this) {
+            ((IocpEventLoop) e).setIoRatio(ioRatio);
+        }
+    }
+
+    /**
+     * Returns the total number of spurious wakeups of all {@link EventLoop}s of this group, see
+     * {@link IocpEventLoop#spuriousWakeups()}.
+     */
+    public long spuriousWakeups() {
+        long spuriousWakeups = 0;
+        for (EventExecutor e: this) {
+            spuriousWakeups += ((IocpEventLoop) e).spuriousWakeups();
+        }
+        return spuriousWakeups;
+    }
+
+    /**
+     * Returns the total number of overlapped structures which were reused from the pools of all {@link EventLoop}s
+     * of this group, see {@link IocpEventLoop#overlappedPoolHits()}.
+     */
+    public long overlappedPoolHits() {
+        long hits = 0;
+        for (EventExecutor e: this) {
+            hits += ((IocpEventLoop) e).overlappedPoolHits();
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the total number of overlapped structures which were allocated as the pools had none, see
+     * {@link IocpEventLoop#overlappedPoolMisses()}.
+     */
+    public long overlappedPoolMisses() {
+        long misses = 0;
+        for (EventExecutor e: this) {
+            misses += ((IocpEventLoop) e).overlappedPoolMisses();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the native memory in bytes which is held by the overlapped pools of all {@link EventLoop}s of this
+     * group, see {@link IocpEventLoop#overlappedPoolRetainedBytes()}.
+     */
+    public long overlappedPoolRetainedBytes() {
+        long retainedBytes = 0;
+        for (EventExecutor e: this) {
+            retainedBytes += ((IocpEventLoop) e).overlappedPoolRetainedBytes();
+        }
+        return retainedBytes;
+    }
+
+    /**
+     * Sets the limit in bytes for the native memory which all {@link EventLoop}s of this group allocate for
+     * overlapped structures and completion arrays, 0 means unlimited. Once more than half of it is used new reads
+     * use smaller buffers. Once it is exhausted no new overlapped buffers are allocated: channels defer additional
+     * pipelined writes until a write completed, and a channel without any write buffer copies into buffers of its
+     * allocator instead.
+     */
+    public void setNativeMemoryBudget(long bytes) {
+        memoryBudget.limit(bytes);
+    }
+
+    /**
+     * Returns the limit for the native memory of this group in bytes, 0 if unlimited.
+     */
+    public long nativeMemoryBudget() {
+        return memoryBudget.limit();
+    }
+
+    /**
+     * Returns the native memory in bytes which is currently accounted to the budget of this group.
+     */
+    public long nativeMemoryUsed() {
+        return memoryBudget.used();
+    }
+
     @Override
     protected EventLoop newChild(Executor executor, Object... args) throws Exception {
         Integer maxEvents = (Integer) args[0];
@@ -173,8 +268,11 @@ public final class IocpEventLoopGroup extends MultithreadEventLoopGroup {
         if (argsLength > 4) {
             tailTaskQueueFactory = (EventLoopTaskQueueFactory) args[4];
         }
+        if (memoryBudget == null) {
+            memoryBudget = new NativeMemoryBudget(DEFAULT_NATIVE_MEMORY_BUDGET);
+        }
         return new IocpEventLoop(this, executor, maxEvents,
                 selectStrategyFactory.newSelectStrategy(),
-                rejectedExecutionHandler, taskQueueFactory, tailTaskQueueFactory);
+                rejectedExecutionHandler, taskQueueFactory, tailTaskQueueFactory, memoryBudget);
     }
 }
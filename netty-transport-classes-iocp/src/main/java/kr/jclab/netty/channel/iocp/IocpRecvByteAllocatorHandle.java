@@ -74,6 +74,18 @@ class IocpRecvByteAllocatorHandle extends DelegatingHandle implements ExtendedHa
         return delegate().allocate(preferredDirectByteBufAllocator);
     }
 
+    /**
+     * Like {@link #allocate(ByteBufAllocator)}, but the buffer is never larger than {@code maxCapacity} bytes.
+     */
+    final ByteBuf allocate(ByteBufAllocator alloc, int maxCapacity) {
+        int guess = guess();
+        if (guess <= maxCapacity) {
+            return allocate(alloc);
+        }
+        preferredDirectByteBufAllocator.updateAllocator(alloc);
+        return preferredDirectByteBufAllocator.ioBuffer(maxCapacity);
+    }
+
     @Override
     public final boolean continueReading(UncheckedBooleanSupplier maybeMoreDataSupplier) {
         return ((ExtendedHandle) delegate()).continueReading(maybeMoreDataSupplier);
@@ -0,0 +1,215 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer engine which delivers the scheduled task deadlines of {@link IocpEventLoop}s as completion packets with the
+ * {@link Native#IOCP_CONTEXT_TIMER} key, which takes the role of the timerfd of the epoll transport.
+ * <p>
+ * GetQueuedCompletionStatusEx only accepts a timeout in milliseconds, so instead of waiting with a timeout the event
+ * loop arms its {@link Timer} and blocks. A single daemon thread waits until the earliest deadline and posts the packet
+ * with PostQueuedCompletionStatus. Every timer has at most one entry in the queue, re-arming replaces it.
+ * <p>
+ * The thread waits on a waitable timer created with {@code CREATE_WAITABLE_TIMER_HIGH_RESOLUTION}, which fires with
+ * sub-millisecond precision. Before Windows 10 1803 it falls back to {@link LockSupport#parkNanos(long)}, which is
+ * only as precise as the system timer interval: 1 ms if an application raised the timer resolution, 15.6 ms by
+ * default.
+ */
+final class IocpTimer {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(IocpTimer.class);
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    private static final IocpTimer INSTANCE = new IocpTimer(new DefaultThreadFactory("iocpTimer", true,
+            Thread.MAX_PRIORITY));
+
+    private final ThreadFactory threadFactory;
+    // Guarded by this
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    private Thread thread;
+    // The high resolution waitable timer, 0 if the thread parks instead.
+    private long waitableTimer;
+    private long sequence;
+
+    private IocpTimer(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Returns a new {@link Timer} which posts into the given completion port.
+     */
+    static Timer newTimer(WinHandle iocpHandle) {
+        return INSTANCE.new Timer(iocpHandle);
+    }
+
+    private synchronized void schedule(Timer timer, long deadlineNanos) {
+        unschedule(timer);
+        Entry entry = new Entry(timer, deadlineNanos, sequence++);
+        timer.entry = entry;
+        queue.add(entry);
+        if (thread == null) {
+            long handle = Native.createHighResolutionTimer();
+            if (handle > 0) {
+                waitableTimer = handle;
+            } else {
+                logger.debug("High resolution waitable timer not available ({}), falling back to parkNanos",
+                        handle);
+            }
+            thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    IocpTimer.this.run();
+                }
+            });
+            thread.start();
+        } else if (queue.peek() == entry) {
+            // The new deadline is the earliest one, let the timer thread re-evaluate its wait time.
+            if (waitableTimer != 0) {
+                setWaitableTimer(deadlineNanos);
+            } else {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    // Called with the lock held
+    private void setWaitableTimer(long deadlineNanos) {
+        int result = Native.setWaitableTimer(waitableTimer, Math.max(0, deadlineNanos - System.nanoTime()));
+        if (result != 0) {
+            logger.warn("Failed to set the waitable timer: {}", result);
+        }
+    }
+
+    // Called with the lock held
+    private void unschedule(Timer timer) {
+        Entry entry = timer.entry;
+        if (entry != null) {
+            timer.entry = null;
+            queue.remove(entry);
+        }
+    }
+
+    private void run() {
+        for (;;) {
+            long deadlineNanos;
+            long waitableTimer;
+            synchronized (this) {
+                Entry entry = queue.peek();
+                if (entry == null) {
+                    deadlineNanos = NONE;
+                } else if (entry.deadlineNanos - System.nanoTime() <= 0) {
+                    queue.poll();
+                    entry.timer.fire(entry);
+                    continue;
+                } else {
+                    deadlineNanos = entry.deadlineNanos;
+                }
+                waitableTimer = this.waitableTimer;
+                if (waitableTimer != 0 && deadlineNanos != NONE) {
+                    // Set under the lock, an earlier deadline scheduled in the meantime replaces the due time.
+                    setWaitableTimer(deadlineNanos);
+                }
+            }
+
+            if (waitableTimer != 0) {
+                // A stale signal only causes another pass through the queue.
+                int result = Native.waitForSingleObject(waitableTimer);
+                if (result != 0) {
+                    logger.warn("Failed to wait for the waitable timer: {}", result);
+                }
+            } else if (deadlineNanos == NONE) {
+                LockSupport.park(this);
+            } else {
+                long delayNanos = deadlineNanos - System.nanoTime();
+                if (delayNanos > 0) {
+                    LockSupport.parkNanos(this, delayNanos);
+                }
+            }
+            // Clear the interrupted state as we never want to stop, parking would return immediately otherwise.
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * The timer of one {@link IocpEventLoop}. At most one deadline is armed at a time.
+     */
+    final class Timer {
+        private final WinHandle iocpHandle;
+        // Guarded by the IocpTimer
+        private Entry entry;
+        private boolean closed;
+
+        private Timer(WinHandle iocpHandle) {
+            this.iocpHandle = iocpHandle;
+        }
+
+        /**
+         * Post a {@link Native#IOCP_CONTEXT_TIMER} packet once the given delay elapsed. Replaces the previously armed
+         * deadline.
+         */
+        void arm(long delayNanos) {
+            long deadlineNanos = System.nanoTime() + delayNanos;
+            synchronized (IocpTimer.this) {
+                if (!closed) {
+                    schedule(this, deadlineNanos);
+                }
+            }
+        }
+
+        /**
+         * Cancel the armed deadline, if any.
+         */
+        void disarm() {
+            synchronized (IocpTimer.this) {
+                unschedule(this);
+            }
+        }
+
+        /**
+         * Disarm the timer for good. After this method returns no packet is posted anymore, so the completion port
+         * can be closed.
+         */
+        void close() {
+            synchronized (IocpTimer.this) {
+                closed = true;
+                unschedule(this);
+            }
+        }
+
+        // Called with the IocpTimer lock held
+        private void fire(Entry entry) {
+            this.entry = null;
+            int result = Native.postWakeup(iocpHandle, Native.IOCP_CONTEXT_TIMER);
+            if (result != 0) {
+                logger.warn("Failed to post the timer packet: {}", result);
+            }
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Timer timer;
+        final long deadlineNanos;
+        final long sequence;
+
+        Entry(Timer timer, long deadlineNanos, long sequence) {
+            this.timer = timer;
+            this.deadlineNanos = deadlineNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            long d = deadlineNanos - o.deadlineNanos;
+            if (d != 0) {
+                return d < 0 ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : 1;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.channel.ChannelException;
+import io.netty.util.internal.ClassInitializerUtil;
+import io.netty.util.internal.NativeLibraryLoader;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.ThrowableUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+ * {@link IocpBackend} which calls into the {@code netty_transport_native_iocp} library. Only works on Windows.
+ */
+final class JniIocpBackend implements IocpBackend {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(JniIocpBackend.class);
+
+    JniIocpBackend() {
+        Selector selector = null;
+        try {
+            // We call Selector.open() as this will under the hood cause IOUtil to be loaded.
+            // This is a workaround for a possible classloader deadlock that could happen otherwise:
+            //
+            // See https://github.com/netty/netty/issues/10187
+            selector = Selector.open();
+        } catch (IOException ignore) {
+            // Just ignore
+        }
+
+        // Preload all classes that will be used in the OnLoad(...) function of JNI to eliminate the possiblity of a
+        // class-loader deadlock. This is a workaround for https://github.com/netty/netty/issues/11209.
+
+        // This needs to match all the classes that are loaded via NETTY_JNI_UTIL_LOAD_CLASS or looked up via
+        // NETTY_JNI_UTIL_FIND_CLASS.
+        ClassInitializerUtil.tryLoadClasses(
+                Native.class,
+                WinHandle.class,
+                WsaEventHandle.class,
+                ChannelException.class
+        );
+
+        try {
+            // First, try calling a side-effect free JNI method to see if the library was already
+            // loaded by the application.
+            NativeStaticallyReferencedJniMethods.nop();
+        } catch (UnsatisfiedLinkError ignore) {
+            // The library was not previously loaded, load it now.
+            loadNativeLibrary();
+        } finally {
+            try {
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException ignore) {
+                // Just ignore
+            }
+        }
+    }
+
+    private static void loadNativeLibrary() {
+        String name = PlatformDependent.normalizedOs();
+        if (!"windows".equals(name)) {
+            throw new IllegalStateException("Only supported on Windows");
+        }
+        String staticLibName = "netty_transport_native_iocp";
+        String sharedLibName = staticLibName + '_' + PlatformDependent.normalizedArch();
+        ClassLoader cl = PlatformDependent.getClassLoader(Native.class);
+        try {
+            NativeLibraryLoader.load(sharedLibName, cl);
+        } catch (UnsatisfiedLinkError e1) {
+            try {
+                NativeLibraryLoader.load(staticLibName, cl);
+                logger.debug("Failed to load {}", sharedLibName, e1);
+            } catch (UnsatisfiedLinkError e2) {
+                ThrowableUtil.addSuppressed(e1, e2);
+                throw e1;
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return "jni";
+    }
+
+    @Override
+    public int sizeOfOverlappedEntry() {
+        return NativeStaticallyReferencedJniMethods.sizeOfOverlappedEntry();
+    }
+
+    @Override
+    public int offsetofOverlappedEntryCompletionKey() {
+        return NativeStaticallyReferencedJniMethods.offsetofOverlappedEntryCompletionKey();
+    }
+
+    @Override
+    public int offsetofOverlappedEntryOverlapped() {
+        return NativeStaticallyReferencedJniMethods.offsetofOverlappedEntryOverlapped();
+    }
+
+    @Override
+    public int offsetofOverlappedEntryNumberOfBytesTransferred() {
+        return NativeStaticallyReferencedJniMethods.offsetofOverlappedEntryNumberOfBytesTransferred();
+    }
+
+    @Override
+    public int sizeOfNativeOverlappedStruct() {
+        return NativeStaticallyReferencedJniMethods.sizeOfNativeOverlappedStruct();
+    }
+
+    @Override
+    public int offsetofNativeOverlappedEventHandle() {
+        return NativeStaticallyReferencedJniMethods.offsetofNativeOverlappedEventHandle();
+    }
+
+    @Override
+    public int offsetofNativeOverlappedMagic() {
+        return NativeStaticallyReferencedJniMethods.offsetofNativeOverlappedMagic();
+    }
+
+    @Override
+    public int offsetofNativeOverlappedFileHandle() {
+        return NativeStaticallyReferencedJniMethods.offsetofNativeOverlappedFileHandle();
+    }
+
+    @Override
+    public int offsetofNativeOverlappedBufferSize() {
+        return NativeStaticallyReferencedJniMethods.offsetofNativeOverlappedBufferSize();
+    }
+
+    @Override
+    public int offsetofNativeOverlappedContextIndex() {
+        return NativeStaticallyReferencedJniMethods.offsetofNativeOverlappedContextIndex();
+    }
+
+    @Override
+    public int pipeAccessDuplex() {
+        return NativeStaticallyReferencedJniMethods.pipeAccessDuplex();
+    }
+
+    @Override
+    public int pipeAccessInbound() {
+        return NativeStaticallyReferencedJniMethods.pipeAccessInbound();
+    }
+
+    @Override
+    public int pipeAccessOutbound() {
+        return NativeStaticallyReferencedJniMethods.pipeAccessOutbound();
+    }
+
+    @Override
+    public int fileFlagFirstPipeInstance() {
+        return NativeStaticallyReferencedJniMethods.fileFlagFirstPipeInstance();
+    }
+
+    @Override
+    public int fileFlagOverlapped() {
+        return NativeStaticallyReferencedJniMethods.fileFlagOverlapped();
+    }
+
+    @Override
+    public int flagGenericRead() {
+        return NativeStaticallyReferencedJniMethods.flagGenericRead();
+    }
+
+    @Override
+    public int flagGenericWrite() {
+        return NativeStaticallyReferencedJniMethods.flagGenericWrite();
+    }
+
+    @Override
+    public int flagOpenExisting() {
+        return NativeStaticallyReferencedJniMethods.flagOpenExisting();
+    }
+
+    @Override
+    public int flagPipeReadmodeMessage() {
+        return NativeStaticallyReferencedJniMethods.flagPipeReadmodeMessage();
+    }
+
+    @Override
+    public int flagPipeReadmodeByte() {
+        return NativeStaticallyReferencedJniMethods.flagPipeReadmodeByte();
+    }
+
+    @Override
+    public int errorNotFound() {
+        return NativeStaticallyReferencedJniMethods.errorNotFound();
+    }
+
+    @Override
+    public int errorIoPending() {
+        return NativeStaticallyReferencedJniMethods.errorIoPending();
+    }
+
+    @Override
+    public int errorBrokenPipe() {
+        return NativeStaticallyReferencedJniMethods.errorBrokenPipe();
+    }
+
+    @Override
+    public int fileSkipCompletionPortOnSuccess() {
+        return NativeStaticallyReferencedJniMethods.fileSkipCompletionPortOnSuccess();
+    }
+
+    @Override
+    public int closeHandle(long handle) {
+        return NativeStaticallyReferencedJniMethods.winCloseHandle(handle);
+    }
+
+    @Override
+    public int wsaCloseEvent(long handle) {
+        return NativeStaticallyReferencedJniMethods.wsaCloseEvent(handle);
+    }
+
+    @Override
+    public long createIoCompletionPort(long handle, long existingCompletionPort, long completionKey,
+                                       int numberOfConcurrentThreads) {
+        return Native.createIoCompletionPort0(handle, existingCompletionPort, completionKey,
+                numberOfConcurrentThreads);
+    }
+
+    @Override
+    public int getQueuedCompletionStatusEx(long handle, long entries, int count, int timeoutMillis) {
+        return Native.getQueuedCompletionStatusExWait(handle, entries, count, timeoutMillis);
+    }
+
+    @Override
+    public int getQueuedCompletionStatusExBusyWait(long handle, long entries, int count) {
+        return Native.getQueuedCompletionStatusExBusyWait(handle, entries, count);
+    }
+
+    @Override
+    public int postQueuedCompletionStatus(long handle, int numberOfBytesTransferred, long completionKey,
+                                          long overlappedPointer) {
+        return Native.postQueuedCompletionStatus0(handle, numberOfBytesTransferred, completionKey,
+                overlappedPointer);
+    }
+
+    @Override
+    public int readOverlappedEntry(long pointer, OverlappedEntry entry) {
+        return Native.readOverlappedEntry0(pointer, entry);
+    }
+
+    @Override
+    public long createNamedPipe(String name, int openMode, int maxInstances, int outBufferSize, int inBufferSize,
+                                int defaultTimeout, long securityAttributesPointer) {
+        return Native.createNamedPipe0(name, openMode, maxInstances, outBufferSize, inBufferSize, defaultTimeout,
+                securityAttributesPointer);
+    }
+
+    @Override
+    public int connectNamedPipe(long handle, long overlappedPointer) {
+        return Native.connectNamedPipe0(handle, overlappedPointer);
+    }
+
+    @Override
+    public long createEvent(long securityAttributePointer, boolean manualReset, boolean initialState, String name) {
+        return Native.createEvent0(securityAttributePointer, manualReset, initialState, name);
+    }
+
+    @Override
+    public long createHighResolutionTimer() {
+        return Native.createHighResolutionTimer0();
+    }
+
+    @Override
+    public int setWaitableTimer(long handle, long delayNanos) {
+        return Native.setWaitableTimer0(handle, delayNanos);
+    }
+
+    @Override
+    public int waitForSingleObject(long handle) {
+        return Native.waitForSingleObject0(handle);
+    }
+
+    @Override
+    public int overlappedInitialize(long memory, long eventHandle, long fileHandle, long bufferAddress,
+                                    int bufferSize, int contextIndex) {
+        return Native.overlappedInitialize0(memory, eventHandle, fileHandle, bufferAddress, bufferSize,
+                contextIndex);
+    }
+
+    @Override
+    public int startOverlappedRead(long overlappedPointer, long bufferAddress, int bufferSize) {
+        return Native.startOverlappedRead0(overlappedPointer, bufferAddress, bufferSize);
+    }
+
+    @Override
+    public int startOverlappedWrite(long overlappedPointer, long bufferAddress, int dataSize) {
+        return Native.startOverlappedWrite0(overlappedPointer, bufferAddress, dataSize);
+    }
+
+    @Override
+    public int cancelIoEx(long handle, long overlappedPointer) {
+        return Native.cancelIoEx0(handle, overlappedPointer);
+    }
+
+    @Override
+    public long getNamedPipeClientProcessId(long handle) {
+        return Native.getNamedPipeClientProcessId0(handle);
+    }
+
+    @Override
+    public long createFile(String fileName, int desiredAccess, int shareMode, long securityAttributesPointer,
+                           int creationDisposition, int flagsAndAttributes, long templateFile) {
+        return Native.createFile0(fileName, desiredAccess, shareMode, securityAttributesPointer, creationDisposition,
+                flagsAndAttributes, templateFile);
+    }
+
+    @Override
+    public int setPipeMessageReadMode(long handle, int mode) {
+        return Native.setPipeMessageReadMode0(handle, mode);
+    }
+
+    @Override
+    public int setFileCompletionNotificationModes(long handle, int flags) {
+        return Native.setFileCompletionNotificationModes0(handle, flags);
+    }
+}
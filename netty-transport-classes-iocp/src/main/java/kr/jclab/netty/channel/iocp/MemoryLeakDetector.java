@@ -1,24 +1,82 @@
 package kr.jclab.netty.channel.iocp;
 
 import io.netty.util.internal.SystemPropertyUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the native memory allocated by the transport.
+ * <p>
+ * The number of live objects and their bytes are counted per {@link Kind} at every level. Allocation stacks are
+ * recorded depending on the {@link Level}, which is taken from {@code kr.jclab.netty.channel.iocp.memoryLeakDetector.level}
+ * ({@code disabled} by default). {@link Level#SAMPLED} records one of
+ * {@code kr.jclab.netty.channel.iocp.memoryLeakDetector.samplingInterval} (128) allocations, like the
+ * {@link io.netty.util.ResourceLeakDetector} does. The former
+ * {@code kr.jclab.netty.channel.iocp.memoryLeakDetector.enabled} switch selects {@link Level#PARANOID}.
+ */
 public class MemoryLeakDetector {
-    static final boolean MEMORY_LEAK_DETECTOR_ENABLE =
-            SystemPropertyUtil.getBoolean("kr.jclab.netty.channel.iocp.memoryLeakDetector.enabled", false);
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(MemoryLeakDetector.class);
+
+    public enum Level {
+        /**
+         * Only count live objects and bytes.
+         */
+        DISABLED,
+        /**
+         * Record the allocation stack of a sample of the allocations.
+         */
+        SAMPLED,
+        /**
+         * Record the allocation stack of every allocation.
+         */
+        PARANOID
+    }
+
+    public enum Kind {
+        /**
+         * The data buffers of {@link NativeOverlapped}s, their headers are accounted as {@link #OVERLAPPED_SLAB}.
+         */
+        NATIVE_OVERLAPPED,
+        /**
+         * The chunks of {@code netty_iocp_native_overlapped_t} headers.
+         */
+        OVERLAPPED_SLAB,
+        /**
+         * The {@code OVERLAPPED_ENTRY} arrays of the event loops.
+         */
+        OVERLAPPED_ENTRY_ARRAY,
+        /**
+         * {@link AbstractNativePointer}s.
+         */
+        NATIVE_POINTER
+    }
+
+    static final Level LEVEL = level();
+    private static final int SAMPLING_INTERVAL = Math.max(1,
+            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.memoryLeakDetector.samplingInterval", 128));
     static final Holder HOLDER = new Holder();
 
+    private static final LongAdder[] liveObjects = newCounters();
+    private static final LongAdder[] liveBytes = newCounters();
 
     public static class Item {
         private final Throwable stack;
         private final Object object;
+        private final Kind kind;
+        private final long bytes;
 
-        public Item(Throwable stack, Object object) {
+        public Item(Throwable stack, Object object, Kind kind, long bytes) {
             this.stack = stack;
             this.object = object;
+            this.kind = kind;
+            this.bytes = bytes;
         }
 
         public Throwable getStack() {
@@ -29,10 +87,20 @@ public class MemoryLeakDetector {
             return object;
         }
 
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
         @Override
         public String toString() {
             return "Item{" +
-                    "stack=" + stack +
+                    "kind=" + kind +
+                    ", bytes=" + bytes +
+                    ", stack=" + stack +
                     ", object=" + object +
                     '}';
         }
@@ -46,7 +114,7 @@ public class MemoryLeakDetector {
         }
 
         public boolean remove(Long pointer) {
-            return true; // aliveObjects.remove(pointer) != null;
+            return aliveObjects.remove(pointer) != null;
         }
 
         public Collection<Item> aliveObjects() {
@@ -58,20 +126,53 @@ public class MemoryLeakDetector {
         }
     }
 
-
-    public static void put(Long pointer, Object object) {
-        if (MEMORY_LEAK_DETECTOR_ENABLE) {
-            HOLDER.put(pointer, new Item(new Exception(), object));
+    /**
+     * Account a new allocation of the given size at the given address.
+     */
+    public static void put(Kind kind, long pointer, long bytes, Object object) {
+        liveObjects[kind.ordinal()].increment();
+        liveBytes[kind.ordinal()].add(bytes);
+        if (LEVEL == Level.PARANOID ||
+                LEVEL == Level.SAMPLED && ThreadLocalRandom.current().nextInt(SAMPLING_INTERVAL) == 0) {
+            HOLDER.put(pointer, new Item(new Exception(), object, kind, bytes));
         }
     }
 
-    public static boolean remove(Long pointer) {
-        if (MEMORY_LEAK_DETECTOR_ENABLE) {
+    /**
+     * Account the release of an allocation which was reported by {@link #put(Kind, long, long, Object)}.
+     *
+     * @return {@code false} if the allocation was sampled but is unknown, which means it was released twice
+     */
+    public static boolean remove(Kind kind, long pointer, long bytes) {
+        liveObjects[kind.ordinal()].decrement();
+        liveBytes[kind.ordinal()].add(-bytes);
+        if (LEVEL == Level.PARANOID) {
             return HOLDER.remove(pointer);
         }
+        if (LEVEL == Level.SAMPLED) {
+            HOLDER.remove(pointer);
+        }
         return true;
     }
 
+    /**
+     * Returns the number of live allocations of the given kind.
+     */
+    public static long liveObjects(Kind kind) {
+        return liveObjects[kind.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of bytes held by the live allocations of the given kind.
+     */
+    public static long liveBytes(Kind kind) {
+        return liveBytes[kind.ordinal()].sum();
+    }
+
+    /**
+     * Returns the live allocations whose stacks were recorded, which is a sample of all allocations unless the level
+     * is {@link Level#PARANOID}.
+     */
     public static Collection<Item> aliveObjects() {
         return HOLDER.aliveObjects();
     }
@@ -79,4 +180,26 @@ public class MemoryLeakDetector {
     public static Item findByAddress(long address) {
         return HOLDER.findByAddress(address);
     }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[Kind.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static Level level() {
+        if (SystemPropertyUtil.getBoolean("kr.jclab.netty.channel.iocp.memoryLeakDetector.enabled", false)) {
+            return Level.PARANOID;
+        }
+        String value = SystemPropertyUtil.get("kr.jclab.netty.channel.iocp.memoryLeakDetector.level",
+                Level.DISABLED.name());
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown memory leak detector level: {}, using {}", value, Level.DISABLED);
+            return Level.DISABLED;
+        }
+    }
 }
@@ -2,6 +2,8 @@ package kr.jclab.netty.channel.iocp;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.util.internal.StringUtil;
+import io.netty.util.internal.SystemPropertyUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -17,15 +19,36 @@ import java.util.concurrent.TimeUnit;
 public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(NamedPipeChannelUnsafe.class);
     private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+    private static final String EXPECTED_TYPES = " (expected: " + StringUtil.simpleClassName(ByteBuf.class) + ')';
+    // Upper bound of the queued buffers which are gathered into one write.
+    private static final int WRITE_GATHER_LIMIT =
+            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.writeGatherLimit", 65536);
+    private static final int MAX_GATHERED_BUFFERS = 1024;
 
     private final NamedPipeChannelConfig config = new NamedPipeChannelConfig(this);
     private WinHandle handle = null;
 
-    private NativeOverlapped readOverlapped = null;
-    private NativeOverlapped writeOverlapped = null;
+    // Ring of read operations, readsInFlight of them starting at readHead are outstanding or not delivered yet.
+    private ReadOperation[] reads = null;
+    private int readHead;
+    private int readsInFlight;
+    // Set once a zero-byte read completed and cleared when a read did not fill its buffer.
+    private boolean readReady;
+    private boolean completingReads;
+    // Reads were delivered but channelReadComplete was not fired yet.
+    private boolean readCycleOpen;
+    private boolean completeReadsScheduled;
+    // Ring of write operations, writesInFlight of them starting at writeHead are in flight.
+    private WriteOperation[] writes = null;
+    private int writeHead;
+    private int writesInFlight;
+    private long writeBytesInFlight;
+    private final WriteCursor writeCursor = new WriteCursor();
 
     private PeerCredentials peerCredentials = null;
 
+    // Write completions of the current batch of completions need a follow-up flush.
+    private boolean flushPending;
     private final Runnable flushTask = new Runnable() {
         @Override
         public void run() {
@@ -35,6 +58,15 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
         }
     };
 
+    private final Runnable completeReadsTask = new Runnable() {
+        @Override
+        public void run() {
+            // Delivers the reads which completed immediately in doBeginRead().
+            completeReadsScheduled = false;
+            completeReads();
+        }
+    };
+
     private NamedPipeSocketAddress requestedRemoteAddress = null;
     private NamedPipeSocketAddress remoteAddress = null;
 
@@ -51,7 +83,6 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
         this.handle = handle;
         this.active = true;
         this.peerCredentials = new PeerCredentials((int) Native.getNamedPipeClientProcessId(handle));
-        prepareWrite();
     }
 
     @Override
@@ -74,29 +105,40 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
     }
 
     @Override
-    protected void handleEvent(OverlappedEntry entry) throws Exception {
-        assert eventLoop().inEventLoop();
-        ChannelPipeline pipeline = pipeline();
-        if (readOverlapped != null && readOverlapped.memoryAddress() == entry.getOverlappedPointer()) {
-            readOverlapped.refDec();
-            int size = entry.getNumberOfBytesTransferred();
-            if (size > 0) {
-                ByteBuf buffer = this.config.getAllocator().buffer(size);
-                readOverlapped.readData(buffer, size);
-
-                try {
-                    pipeline.fireChannelRead(buffer);
-                    pipeline.fireChannelReadComplete();
-                } catch (Throwable e) {
-                    pipeline.fireChannelReadComplete();
-                    pipeline.fireExceptionCaught(e);
+    protected void handleEvent(IocpCompletionContext context, OverlappedEntry entry) throws Exception {
+        NativeOverlapped overlapped = context.overlapped();
+        if (context.operation() == IocpCompletionContext.OP_READ) {
+            ReadOperation op = findRead(overlapped);
+            // The kernel wrote straight into the memory of the pinned buffer.
+            ByteBuf buffer = overlapped.unpin();
+            overlapped.refDec();
+            if (op == null) {
+                // Cancelled by close().
+                if (buffer != null) {
+                    buffer.release();
                 }
-            } else {
-                unsafe().close(voidPromise());
+                return;
             }
-        } else if (writeOverlapped != null && writeOverlapped.memoryAddress() == entry.getOverlappedPointer()) {
-            writeOverlapped.refDec();
-            eventLoop().execute(flushTask);
+            assert eventLoop().inEventLoop();
+            op.buffer = buffer;
+            op.size = entry.getNumberOfBytesTransferred();
+            op.done = true;
+            completeReads();
+            return;
+        }
+
+        WriteOperation op = context.operation() == IocpCompletionContext.OP_WRITE ? findWrite(overlapped) : null;
+        ByteBuf pinned = overlapped.unpin();
+        if (pinned != null) {
+            pinned.release();
+        }
+        // Also releases the operations which were cancelled by close().
+        overlapped.refDec();
+        if (op != null) {
+            assert eventLoop().inEventLoop();
+            op.done = true;
+            op.transferred = entry.getNumberOfBytesTransferred();
+            completeWrites();
         }
     }
 
@@ -132,85 +174,497 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
 
     @Override
     protected void doBeginRead() throws Exception {
-        if (readOverlapped == null) {
-            readOverlapped = new NativeOverlapped(handle, config.getReceiveBufferSize());
+        if (!isActive()) {
+            // Closed by a handler before the read was requested, the handle is gone.
+            return;
+        }
+        if (reads == null) {
+            reads = new ReadOperation[config.getReadAheadDepth()];
+        }
+        startReads();
+    }
+
+    private void startReads() throws Errors.NativeIoException {
+        // Keep up to the read-ahead depth of reads outstanding, so the kernel always has a buffer to fill.
+        while (reads != null && readsInFlight < reads.length) {
+            if (config.isZeroByteRead() && !readReady) {
+                // Only probe for data, no buffer is pinned until the pipe became readable.
+                if (readsInFlight == 0) {
+                    startRead(nextRead(), true);
+                }
+                return;
+            }
+            if (!startRead(nextRead(), false)) {
+                return;
+            }
         }
-        startRead();
     }
 
-    private void startRead() throws Errors.NativeIoException {
-         if (readOverlapped.refCount() > 1) {
-            return ;
+    /**
+     * @param probe post a zero-byte read which completes once data arrived, instead of reading into a buffer
+     * @return {@code false} if the channel was closed instead
+     */
+    private boolean startRead(ReadOperation op, boolean probe) throws Errors.NativeIoException {
+        NativeOverlapped overlapped = op.overlapped;
+        final long address;
+        final int size;
+        if (probe) {
+            address = overlapped.memoryAddress();
+            size = 0;
+        } else {
+            // The RecvByteBufAllocator guesses the size from the previous completions, the native memory budget of the
+            // group caps it under memory pressure.
+            ByteBuf buffer = ((AbstractIocpUnsafe) unsafe()).recvBufAllocHandle().allocate(config.getAllocator(),
+                    completionLoop().memoryBudget().readSizeLimit());
+            overlapped.pin(buffer);
+            address = Buffer.memoryAddress(buffer, buffer.writerIndex());
+            size = buffer.writableBytes();
         }
+        op.probe = probe;
+        op.attempted = size;
+        final int rc;
         try {
-            readOverlapped.refInc();
-            Native.startOverlappedRead(readOverlapped);
-        } catch (Exception e) {
-            readOverlapped.refDec();
+            overlapped.refInc();
+            rc = Native.startOverlappedRead(overlapped, address, size);
+        } catch (Errors.NativeIoException e) {
+            abortRead(overlapped);
+            if (e.getCode() == -Native.ERROR_BROKEN_PIPE) {
+                // The other end was closed, same as a read of zero bytes.
+                unsafe().close(voidPromise());
+                return false;
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            abortRead(overlapped);
             throw e;
         }
+        readsInFlight++;
+        if (rc != Native.IO_PENDING && handle.isSkipCompletionPortOnSuccess()) {
+            // Completed immediately and no completion packet follows.
+            op.buffer = overlapped.unpin();
+            overlapped.refDec();
+            op.size = rc;
+            op.done = true;
+            if (!completingReads && !completeReadsScheduled) {
+                completeReadsScheduled = true;
+                eventLoop().execute(completeReadsTask);
+            }
+        }
+        return true;
+    }
+
+    private static void abortRead(NativeOverlapped overlapped) {
+        ByteBuf buffer = overlapped.unpin();
+        if (buffer != null) {
+            buffer.release();
+        }
+        overlapped.refDec();
+    }
+
+    private ReadOperation nextRead() throws Errors.NativeIoException {
+        int index = (readHead + readsInFlight) % reads.length;
+        ReadOperation op = reads[index];
+        if (op == null) {
+            // Reads go straight into pooled direct buffers, so the overlapped needs no buffer of its own.
+            op = new ReadOperation(completionLoop().overlappedPool().acquire(this,
+                    IocpCompletionContext.OP_READ, handle, 0));
+            reads[index] = op;
+        }
+        return op;
+    }
+
+    private ReadOperation findRead(NativeOverlapped overlapped) {
+        if (reads != null) {
+            for (int i = 0; i < readsInFlight; i++) {
+                ReadOperation op = reads[(readHead + i) % reads.length];
+                if (op.overlapped == overlapped) {
+                    return op;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deliver the completed reads at the head of the ring. A read which completed before an earlier one is held
+     * back, so the pipeline sees the data in submission order. The next reads are posted right away, and reads which
+     * complete immediately are delivered in the same batch as long as the RecvByteBufAllocator wants to continue.
+     * <p>
+     * All reads delivered while the completion loop handles one batch of completions form a single read cycle, which
+     * ends with one channelReadComplete in {@link #completionBatchDone()}.
+     */
+    private void completeReads() {
+        ChannelPipeline pipeline = pipeline();
+        IocpRecvByteAllocatorHandle allocHandle = ((AbstractIocpUnsafe) unsafe()).recvBufAllocHandle();
+        boolean readSome = false;
+        boolean closed = false;
+        completingReads = true;
+        try {
+            for (;;) {
+                boolean probed = false;
+                while (reads != null && readsInFlight > 0) {
+                    ReadOperation op = reads[readHead];
+                    if (!op.done) {
+                        break;
+                    }
+                    ByteBuf buffer = op.buffer;
+                    op.buffer = null;
+                    op.done = false;
+                    readHead = (readHead + 1) % reads.length;
+                    readsInFlight--;
+                    if (op.probe) {
+                        // The pipe became readable, read it with real buffers now.
+                        readReady = true;
+                        probed = true;
+                    } else if (op.size > 0) {
+                        // A full buffer means there may be more, otherwise probe again before pinning the next buffer.
+                        readReady = op.size == op.attempted;
+                        buffer.writerIndex(buffer.writerIndex() + op.size);
+                        if (!readCycleOpen) {
+                            allocHandle.reset(config);
+                            readCycleOpen = true;
+                        }
+                        readSome = true;
+                        allocHandle.attemptedBytesRead(op.attempted);
+                        allocHandle.lastBytesRead(op.size);
+                        allocHandle.incMessagesRead(1);
+                        try {
+                            pipeline.fireChannelRead(buffer);
+                        } catch (Throwable e) {
+                            pipeline.fireExceptionCaught(e);
+                        }
+                    } else {
+                        buffer.release();
+                        closed = true;
+                        break;
+                    }
+                }
+                if (closed || reads == null || !(probed || readSome && allocHandle.continueReading())) {
+                    break;
+                }
+                startReads();
+                if (reads == null || readsInFlight == 0 || !reads[readHead].done) {
+                    break;
+                }
+            }
+        } catch (Errors.NativeIoException e) {
+            pipeline.fireExceptionCaught(e);
+            closed = true;
+        } finally {
+            completingReads = false;
+        }
+        if (closed) {
+            finishReadCycle();
+            unsafe().close(voidPromise());
+        } else if (readCycleOpen) {
+            IocpEventLoop loop = (IocpEventLoop) eventLoop();
+            if (loop.inCompletionBatch()) {
+                // More completions of this pipe may be in the same batch.
+                loop.afterCompletionBatch(this);
+            } else {
+                finishReadCycle();
+            }
+        }
+    }
+
+    private void finishReadCycle() {
+        if (readCycleOpen) {
+            readCycleOpen = false;
+            ((AbstractIocpUnsafe) unsafe()).recvBufAllocHandle().readComplete();
+            pipeline().fireChannelReadComplete();
+        }
+    }
+
+    @Override
+    protected void completionBatchDone() {
+        finishReadCycle();
+        if (flushPending) {
+            flushPending = false;
+            // Calling flush0 directly to ensure we not try to flush messages that were added via write(...) in the
+            // meantime.
+            ((AbstractIocpUnsafe) unsafe()).flush0();
+        }
+    }
+
+    @Override
+    protected Object filterOutboundMessage(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return msg;
+        }
+        // Any other message would never be written and block all messages queued after it.
+        throw new UnsupportedOperationException(
+                "unsupported message type: " + StringUtil.simpleClassName(msg) + EXPECTED_TYPES);
     }
 
     @Override
     protected void doWrite(ChannelOutboundBuffer in) throws Exception {
-        boolean written = false;
-        while (!written && in.size() > 0) {
-            if (writeOverlapped.refCount() > 1) {
-                return ;
+        prepareWrite();
+        while (writesInFlight < writes.length) {
+            WriteOperation op = nextWrite();
+            if (op == null) {
+                // Deferred until a write in flight completed and flushes again.
+                return;
+            }
+            if (!submitWrite(in, op)) {
+                return;
+            }
+            if (writes[writeHead].done && !retireWrites()) {
+                // Completed immediately, but short.
+                return;
             }
+        }
+    }
 
-            ByteBuf current = (ByteBuf) in.current();
-            written = doWriteInternal(in, current);
+    /**
+     * Submit the queued data which follows the bytes that are already in flight.
+     *
+     * @return {@code false} if there was nothing left to submit
+     */
+    private boolean submitWrite(ChannelOutboundBuffer in, WriteOperation op) throws Exception {
+        NativeOverlapped overlapped = op.overlapped;
+        if (in.size() > 1 && submitGatheredWrite(in, op)) {
+            return true;
         }
+
+        writeCursor.reset(writeBytesInFlight);
+        in.forEachFlushedMessage(writeCursor);
+        ByteBuf current = writeCursor.buffer;
+        if (current == null) {
+            if (writesInFlight == 0) {
+                // Only empty buffers are left.
+                in.removeBytes(0);
+            }
+            return false;
+        }
+        final int index = writeCursor.index;
+        final int length = writeCursor.length;
+        writeCursor.buffer = null;
+
+        final long address;
+        final int bytes;
+        final ByteBuf pinned;
+        if (current.isDirect()) {
+            // Write from the memory of the buffer itself, which is retained until the write completed.
+            if (current.nioBufferCount() == 1) {
+                address = Buffer.memoryAddress(current, index);
+                bytes = length;
+            } else {
+                // One component of a CompositeByteBuf per write, the next one follows once it completed.
+                ByteBuffer component = current.nioBuffers(index, length)[0];
+                address = Buffer.memoryAddress(component) + component.position();
+                bytes = component.remaining();
+            }
+            pinned = current.retain();
+        } else if (length <= overlapped.bufferSize()) {
+            bytes = overlapped.writeData(current, index, length);
+            address = overlapped.bufferAddress();
+            pinned = null;
+        } else {
+            // Too large for the own buffer, copy once into a direct buffer instead of writing it in chunks.
+            bytes = length;
+            pinned = config.getAllocator().directBuffer(bytes);
+            pinned.writeBytes(current, index, bytes);
+            address = Buffer.memoryAddress(pinned, pinned.readerIndex());
+        }
+
+        startWrite(op, address, bytes, pinned);
+        return true;
     }
 
-    private boolean doWriteInternal(ChannelOutboundBuffer in, ByteBuf current) throws Exception {
-        if (!current.isReadable()) {
-            in.remove();
+    /**
+     * Gather as many queued buffers as fit into {@link #WRITE_GATHER_LIMIT} bytes into one write, so many small
+     * messages cost a single WriteFile and completion.
+     *
+     * @return {@code false} if there was nothing to gather
+     */
+    private boolean submitGatheredWrite(ChannelOutboundBuffer in, WriteOperation op) throws Exception {
+        long skip = writeBytesInFlight;
+        ByteBuffer[] nioBuffers = in.nioBuffers(MAX_GATHERED_BUFFERS, skip + WRITE_GATHER_LIMIT);
+        int nioBufferCount = in.nioBufferCount();
+        // Skip what is already in flight.
+        int first = 0;
+        while (first < nioBufferCount && skip >= nioBuffers[first].remaining()) {
+            skip -= nioBuffers[first].remaining();
+            first++;
+        }
+        if (nioBufferCount - first <= 1) {
             return false;
         }
+        ByteBuffer head = nioBuffers[first];
+        head.position(head.position() + (int) skip);
+
+        NativeOverlapped overlapped = op.overlapped;
+        final int bytes = (int) (in.nioBufferSize() - writeBytesInFlight);
+        final long address;
+        final ByteBuf pinned;
+        if (bytes <= overlapped.bufferSize()) {
+            overlapped.writeData(nioBuffers, first, nioBufferCount);
+            address = overlapped.bufferAddress();
+            pinned = null;
+        } else {
+            pinned = config.getAllocator().directBuffer(bytes);
+            for (int i = first; i < nioBufferCount; i++) {
+                pinned.writeBytes(nioBuffers[i]);
+            }
+            address = Buffer.memoryAddress(pinned, pinned.readerIndex());
+        }
+        // The buffers are removed with ChannelOutboundBuffer.removeBytes(...) once the write completed.
+        startWrite(op, address, bytes, pinned);
+        return true;
+    }
 
-        int bytes = writeOverlapped.writeData(current);
+    private void startWrite(WriteOperation op, long address, int bytes, ByteBuf pinned)
+            throws Errors.NativeIoException {
+        NativeOverlapped overlapped = op.overlapped;
+        if (pinned != null) {
+            overlapped.pin(pinned);
+        }
+        final int rc;
         try {
-            writeOverlapped.refInc();
-            Native.startOverlappedWrite(writeOverlapped, bytes);
+            overlapped.refInc();
+            rc = Native.startOverlappedWrite(overlapped, address, bytes);
         } catch (Exception e) {
-            writeOverlapped.refDec();
+            ByteBuf buf = overlapped.unpin();
+            if (buf != null) {
+                buf.release();
+            }
+            overlapped.refDec();
             throw e;
         }
+        op.bytes = bytes;
+        op.done = false;
+        writesInFlight++;
+        writeBytesInFlight += bytes;
+        if (rc != Native.IO_PENDING && handle.isSkipCompletionPortOnSuccess()) {
+            // Completed immediately and no completion packet follows.
+            ByteBuf buf = overlapped.unpin();
+            if (buf != null) {
+                buf.release();
+            }
+            overlapped.refDec();
+            op.transferred = rc;
+            op.done = true;
+        }
+    }
+
+    /**
+     * @return {@code null} if another write would need an overlapped which does not fit into the native memory budget
+     */
+    private WriteOperation nextWrite() throws Errors.NativeIoException {
+        int index = (writeHead + writesInFlight) % writes.length;
+        WriteOperation op = writes[index];
+        if (op == null) {
+            NativeOverlapped overlapped = completionLoop().overlappedPool().acquire(this,
+                    IocpCompletionContext.OP_WRITE, handle, config.getSendBufferSize());
+            if (overlapped == null) {
+                if (writesInFlight > 0) {
+                    return null;
+                }
+                // Without any write the channel would stall, so go without an own buffer. Heap buffers are then
+                // copied into a direct buffer of the allocator for every write.
+                overlapped = completionLoop().overlappedPool().acquire(this,
+                        IocpCompletionContext.OP_WRITE, handle, 0);
+            }
+            op = new WriteOperation(overlapped);
+            writes[index] = op;
+        }
+        return op;
+    }
+
+    private WriteOperation findWrite(NativeOverlapped overlapped) {
+        if (writes != null) {
+            for (int i = 0; i < writesInFlight; i++) {
+                WriteOperation op = writes[(writeHead + i) % writes.length];
+                if (op.overlapped == overlapped) {
+                    return op;
+                }
+            }
+        }
+        return null;
+    }
 
-        in.progress(bytes);
-        if (!current.isReadable()) {
-            in.remove();
+    private void completeWrites() {
+        if (retireWrites()) {
+            IocpEventLoop loop = (IocpEventLoop) eventLoop();
+            if (loop.inCompletionBatch()) {
+                // Flush once after all completions of this batch, not once per completed write.
+                flushPending = true;
+                loop.afterCompletionBatch(this);
+            } else {
+                eventLoop().execute(flushTask);
+            }
         }
+    }
 
+    /**
+     * Retire the completed writes at the head of the ring. Writes are retired in submission order even if their
+     * completions are dequeued out of order, so the ChannelOutboundBuffer progress and the promises keep the order.
+     *
+     * @return {@code false} if a write was short and the channel was closed
+     */
+    private boolean retireWrites() {
+        ChannelOutboundBuffer in = unsafe().outboundBuffer();
+        boolean shortWrite = false;
+        while (writesInFlight > 0) {
+            WriteOperation op = writes[writeHead];
+            if (!op.done) {
+                break;
+            }
+            op.done = false;
+            writeHead = (writeHead + 1) % writes.length;
+            writesInFlight--;
+            writeBytesInFlight -= op.bytes;
+            if (in != null) {
+                // The written bytes are only removed now, which also completes the write promises.
+                in.removeBytes(op.transferred);
+            }
+            shortWrite |= op.transferred < op.bytes;
+        }
+        if (shortWrite) {
+            // The write failed, later writes which were already in flight can not be retried in order.
+            unsafe().close(voidPromise());
+            return false;
+        }
         return true;
     }
 
     @Override
     protected void doCloseHandle() throws IOException {
-        int rc;
-        if (readOverlapped != null) {
-            if (handle != null) {
-                rc = Native.cancelIoEx0(handle.longValue(), readOverlapped.memoryAddress());
-                if (rc == 0) {
-                    readOverlapped.refDec();
+        // A pending operation keeps its own reference until the (cancelled) completion was dequeued, as the kernel
+        // may still write into the overlapped header until then.
+        if (reads != null) {
+            for (ReadOperation op : reads) {
+                if (op == null) {
+                    continue;
                 }
+                if (handle != null && op.overlapped.refCount() > 1) {
+                    Native.cancelIoEx(handle.longValue(), op.overlapped.memoryAddress());
+                }
+                if (op.buffer != null) {
+                    // Completed but not delivered yet.
+                    op.buffer.release();
+                    op.buffer = null;
+                }
+                op.overlapped.refDec();
             }
-
-            readOverlapped.refDec();
-            readOverlapped = null;
+            reads = null;
+            readHead = 0;
+            readsInFlight = 0;
         }
-        if (writeOverlapped != null) {
-            if (handle != null) {
-                rc = Native.cancelIoEx0(handle.longValue(), writeOverlapped.memoryAddress());
-                if (rc == 0) {
-                    writeOverlapped.refDec();
+        if (writes != null) {
+            for (WriteOperation op : writes) {
+                if (op == null) {
+                    continue;
                 }
+                if (handle != null && op.overlapped.refCount() > 1) {
+                    Native.cancelIoEx(handle.longValue(), op.overlapped.memoryAddress());
+                }
+                op.overlapped.refDec();
             }
-
-            writeOverlapped.refDec();
-            writeOverlapped = null;
+            writes = null;
+            writeHead = 0;
+            writesInFlight = 0;
+            writeBytesInFlight = 0;
         }
         if (handle != null) {
             handle.close();
@@ -218,8 +672,9 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
     }
 
     private void prepareWrite() throws Errors.NativeIoException {
-        if (writeOverlapped == null) {
-            writeOverlapped = new NativeOverlapped(handle, config.getSendBufferSize());
+        if (writes == null) {
+            writes = new WriteOperation[config.getWritePipelineDepth()];
+            nextWrite();
         }
     }
 
@@ -263,8 +718,8 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
             }
             this.handle = connectedHandle;
 
-            prepareWrite();
             ((IocpEventLoop) eventLoop()).iocpRegister(handle, this);
+            prepareWrite();
         } catch (Errors.NativeIoException e) {
             if (e.getCode() == -231) {
                 // pipe is busy
@@ -347,6 +802,13 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
     }
 
     private class NamedPipeChannelUnsafe extends AbstractIocpUnsafe {
+        @Override
+        IocpRecvByteAllocatorHandle newIocpHandle(RecvByteBufAllocator.ExtendedHandle handle) {
+            // A message mode read completes with at most one message, which says nothing about more data.
+            return config.isMessageMode() ? super.newIocpHandle(handle)
+                    : new IocpRecvByteAllocatorStreamingHandle(handle);
+        }
+
         @Override
         public void connect(SocketAddress remoteAddress, SocketAddress localAddress, ChannelPromise promise) {
             if (!promise.setUncancellable() || !ensureOpen(promise)) {
@@ -396,4 +858,60 @@ public class NamedPipeChannel extends AbstractIocpChannel implements Channel {
             }
         }
     }
+
+    private static final class ReadOperation {
+        final NativeOverlapped overlapped;
+        ByteBuf buffer;
+        boolean probe;
+        int attempted;
+        int size;
+        boolean done;
+
+        ReadOperation(NativeOverlapped overlapped) {
+            this.overlapped = overlapped;
+        }
+    }
+
+    private static final class WriteOperation {
+        final NativeOverlapped overlapped;
+        int bytes;
+        int transferred;
+        boolean done;
+
+        WriteOperation(NativeOverlapped overlapped) {
+            this.overlapped = overlapped;
+        }
+    }
+
+    /**
+     * Finds the first flushed byte which is not yet in flight.
+     */
+    private static final class WriteCursor implements ChannelOutboundBuffer.MessageProcessor {
+        private long skip;
+        ByteBuf buffer;
+        int index;
+        int length;
+
+        void reset(long skip) {
+            this.skip = skip;
+            buffer = null;
+        }
+
+        @Override
+        public boolean processMessage(Object msg) {
+            if (!(msg instanceof ByteBuf)) {
+                return false;
+            }
+            ByteBuf buf = (ByteBuf) msg;
+            int readable = buf.readableBytes();
+            if (skip >= readable) {
+                skip -= readable;
+                return true;
+            }
+            buffer = buf;
+            index = buf.readerIndex() + (int) skip;
+            length = readable - (int) skip;
+            return false;
+        }
+    }
 }
@@ -1,6 +1,14 @@
 package kr.jclab.netty.channel.iocp;
 
+import io.netty.channel.ChannelOption;
 import io.netty.channel.RecvByteBufAllocator;
+import io.netty.util.internal.ObjectUtil;
+
+import java.util.Map;
+
+import static kr.jclab.netty.channel.iocp.IocpChannelOption.READ_AHEAD_DEPTH;
+import static kr.jclab.netty.channel.iocp.IocpChannelOption.WRITE_PIPELINE_DEPTH;
+import static kr.jclab.netty.channel.iocp.IocpChannelOption.ZERO_BYTE_READ;
 
 public class NamedPipeChannelConfig<T extends NamedPipeChannelConfig<T>> extends IocpChannelConfig {
     private int receiveBufferSize = 1024;
@@ -8,6 +16,9 @@ public class NamedPipeChannelConfig<T extends NamedPipeChannelConfig<T>> extends
     private int defaultTimeout = 5000;
     private boolean messageMode = false; // use PIPE_READMODE_MESSAGE
     private int maxBusyRetries = 5;
+    private int readAheadDepth = 1;
+    private boolean zeroByteRead = false;
+    private int writePipelineDepth = 1;
 
     NamedPipeChannelConfig(AbstractIocpChannel channel) {
         super(channel);
@@ -66,4 +77,86 @@ public class NamedPipeChannelConfig<T extends NamedPipeChannelConfig<T>> extends
         this.maxBusyRetries = maxBusyRetries;
         return (T) this;
     }
+
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    /**
+     * Set the number of overlapped reads which are kept outstanding at once. Takes effect for channels which did not
+     * read yet.
+     */
+    @SuppressWarnings("unchecked")
+    public T setReadAheadDepth(int readAheadDepth) {
+        this.readAheadDepth = ObjectUtil.checkPositive(readAheadDepth, "readAheadDepth");
+        return (T) this;
+    }
+
+    public boolean isZeroByteRead() {
+        return zeroByteRead;
+    }
+
+    /**
+     * Post zero-byte reads while the pipe is idle and only read into a buffer once data arrived. Saves the memory of
+     * a pinned receive buffer per idle pipe at the cost of an extra completion per burst of data.
+     */
+    @SuppressWarnings("unchecked")
+    public T setZeroByteRead(boolean zeroByteRead) {
+        this.zeroByteRead = zeroByteRead;
+        return (T) this;
+    }
+
+    public int getWritePipelineDepth() {
+        return writePipelineDepth;
+    }
+
+    /**
+     * Set the number of overlapped writes which may be in flight at once. Takes effect for channels which did not
+     * write yet.
+     */
+    @SuppressWarnings("unchecked")
+    public T setWritePipelineDepth(int writePipelineDepth) {
+        this.writePipelineDepth = ObjectUtil.checkPositive(writePipelineDepth, "writePipelineDepth");
+        return (T) this;
+    }
+
+    @Override
+    public Map<ChannelOption<?>, Object> getOptions() {
+        return getOptions(
+                super.getOptions(),
+                READ_AHEAD_DEPTH, ZERO_BYTE_READ, WRITE_PIPELINE_DEPTH
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <O> O getOption(ChannelOption<O> option) {
+        if (option == READ_AHEAD_DEPTH) {
+            return (O) Integer.valueOf(getReadAheadDepth());
+        } else if (option == ZERO_BYTE_READ) {
+            return (O) Boolean.valueOf(isZeroByteRead());
+        } else if (option == WRITE_PIPELINE_DEPTH) {
+            return (O) Integer.valueOf(getWritePipelineDepth());
+        } else {
+            return super.getOption(option);
+        }
+    }
+
+    @Override
+    public <O> boolean setOption(ChannelOption<O> option, O value) {
+        validate(option, value);
+
+        if (option == READ_AHEAD_DEPTH) {
+            setReadAheadDepth((Integer) value);
+            return true;
+        } else if (option == ZERO_BYTE_READ) {
+            setZeroByteRead((Boolean) value);
+            return true;
+        } else if (option == WRITE_PIPELINE_DEPTH) {
+            setWritePipelineDepth((Integer) value);
+            return true;
+        } else {
+            return super.setOption(option, value);
+        }
+    }
 }
@@ -11,7 +11,7 @@ import static kr.jclab.netty.channel.iocp.IocpChannelOption.SECURITY_ATTRIBUTES;
 
 public class NamedPipeServerChannel extends AbstractNamedPipeChannel implements ServerChannel {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(NamedPipeServerChannel.class);
-    private static final int FILE_FLAG_FIRST_PIPE_INSTANCE = NativeStaticallyReferencedJniMethods.fileFlagFirstPipeInstance();
+    private static final int FILE_FLAG_FIRST_PIPE_INSTANCE = Native.backend().fileFlagFirstPipeInstance();
     private static final ChannelMetadata METADATA = new ChannelMetadata(false);
 
     private final NamedPipeServerChannelConfig config;
@@ -54,7 +54,8 @@ public class NamedPipeServerChannel extends AbstractNamedPipeChannel implements
 
         NamedPipeSocketAddress addressImpl = (NamedPipeSocketAddress) local;
         this.localAddress = addressImpl;
-        this.connectOverlapped = new NativeOverlapped(0);
+        this.connectOverlapped = ((IocpEventLoop) eventLoop()).overlappedPool().acquire(this,
+                IocpCompletionContext.OP_CONNECT, null, 0);
 
         active = true;
         createListenPipe();
@@ -93,19 +94,18 @@ public class NamedPipeServerChannel extends AbstractNamedPipeChannel implements
     protected void doCloseHandle() throws IOException {
         if (pendingConnectHandle != null) {
             try {
-                if (connectOverlapped != null) {
-                    int rc = Native.cancelIoEx0(pendingConnectHandle.longValue(), connectOverlapped.memoryAddress());
-                    if (rc == 0) {
-                        connectOverlapped.refDec();
-                    }
+                if (connectOverlapped != null && connectOverlapped.refCount() > 1) {
+                    // The pending connect keeps its reference until the cancelled completion was dequeued.
+                    Native.cancelIoEx(pendingConnectHandle.longValue(), connectOverlapped.memoryAddress());
                 }
                 pendingConnectHandle.close();
             } catch (Exception e) {
             }
         }
         if (connectOverlapped != null) {
-            connectOverlapped.refDec();
+            NativeOverlapped overlapped = connectOverlapped;
             connectOverlapped = null;
+            overlapped.refDec();
         }
 
         NativePointer securityAttributes = this.config.getOption(SECURITY_ATTRIBUTES);
@@ -115,18 +115,14 @@ public class NamedPipeServerChannel extends AbstractNamedPipeChannel implements
     }
 
     @Override
-    protected void handleEvent(OverlappedEntry entry) throws IOException {
-        if (connectOverlapped == null) {
-            logger.warn("invalid pointer: connectOverlapped=null, overlappedPointer=" + entry.getOverlappedPointer());
+    protected void handleEvent(IocpCompletionContext context, OverlappedEntry entry) throws IOException {
+        NativeOverlapped overlapped = context.overlapped();
+        overlapped.refDec();
+        if (overlapped != connectOverlapped) {
+            // Completion of a connect which was cancelled by close()
             return ;
         }
 
-        if (entry.getOverlappedPointer() != connectOverlapped.memoryAddress()) {
-            logger.warn("invalid pointer: ", entry.getOverlappedPointer() + " != " + connectOverlapped.memoryAddress());
-            return ;
-        }
-        connectOverlapped.refDec();
-
         handleConnect();
     }
 
@@ -136,7 +132,7 @@ public class NamedPipeServerChannel extends AbstractNamedPipeChannel implements
         if (securityAttributes != null) {
             securityAttributesPointer = securityAttributes.getPointer();
         }
-        long handleValue = Native.createNamedPipe0(
+        long handleValue = Native.createNamedPipe(
                 localAddress.getName(),
                 this.config.isFlagFirstPipeInstance() ? FILE_FLAG_FIRST_PIPE_INSTANCE : 0,
                 this.config.getMaxInstances(),
@@ -160,12 +156,13 @@ public class NamedPipeServerChannel extends AbstractNamedPipeChannel implements
     private void startConnect() throws IOException {
         connectOverlapped.initialize(pendingConnectHandle);
         connectOverlapped.refInc();
-        int result = Native.connectNamedPipe0(pendingConnectHandle.longValue(), connectOverlapped.memoryAddress());
+        int result = Native.connectNamedPipe(pendingConnectHandle.longValue(), connectOverlapped.memoryAddress());
         if (result < 0) {
             connectOverlapped.refDec();
             throw Errors.newIOException("connectNamedPipe", result);
         } else if (result == 1) {
-            // immediately connected
+            // immediately connected, no completion packet will be queued
+            connectOverlapped.refDec();
             handleConnect();
         }
     }
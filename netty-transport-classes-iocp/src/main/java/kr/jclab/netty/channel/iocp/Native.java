@@ -16,15 +16,11 @@
 package kr.jclab.netty.channel.iocp;
 
 import io.netty.channel.ChannelException;
-import io.netty.util.internal.ClassInitializerUtil;
-import io.netty.util.internal.NativeLibraryLoader;
-import io.netty.util.internal.PlatformDependent;
-import io.netty.util.internal.ThrowableUtil;
+import io.netty.util.internal.SystemPropertyUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
 
 import static kr.jclab.netty.channel.iocp.Errors.newIOException;
 
@@ -32,15 +28,24 @@ import static kr.jclab.netty.channel.iocp.Errors.newIOException;
  * Native helper methods
  * <p><strong>Internal usage only!</strong>
  * <p>Static members which call JNI methods must be defined in {@link NativeStaticallyReferencedJniMethods}.
+ * <p>All calls are routed through an {@link IocpBackend}. The backend is selected with the
+ * {@code kr.jclab.netty.channel.iocp.backend} system property: {@code jni} (default) uses the native library,
+ * {@code inmemory} uses {@link InMemoryIocpBackend} which emulates completion ports and named pipes in memory so the
+ * transport can be exercised on any platform.
  */
 public final class Native {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(Native.class);
 
+    private static final IocpBackend BACKEND;
+
     public static final int INVALID_HANDLE_VALUE = -1;
     public static final int IOCP_CONTEXT_WAKEUP = 0x00000000;
     public static final int IOCP_CONTEXT_TIMER  = 0x00000001;
     public static final int IOCP_CONTEXT_HANDLE = 0x10000000;
 
+    // INFINITE, the timeout is passed to GetQueuedCompletionStatusEx as DWORD
+    static final int IOCP_WAIT_INFINITE = -1;
+
     public static final int  PIPE_ACCESS_DUPLEX;
     public static final int  PIPE_ACCESS_INBOUND;
     public static final int  PIPE_ACCESS_OUTBOUND;
@@ -51,80 +56,45 @@ public final class Native {
     public static final int GENERIC_WRITE;
     public static final int OPEN_EXISTING;
     public static final int ERROR_NOT_FOUND;
+    public static final int ERROR_IO_PENDING;
+    public static final int ERROR_BROKEN_PIPE;
+    public static final int FILE_SKIP_COMPLETION_PORT_ON_SUCCESS;
+
+    // Returned by startOverlappedRead / startOverlappedWrite while the operation is pending
+    static final int IO_PENDING = -1;
 
 
     static {
-        Selector selector = null;
-        try {
-            // We call Selector.open() as this will under the hood cause IOUtil to be loaded.
-            // This is a workaround for a possible classloader deadlock that could happen otherwise:
-            //
-            // See https://github.com/netty/netty/issues/10187
-            selector = Selector.open();
-        } catch (IOException ignore) {
-            // Just ignore
+        String backendName = SystemPropertyUtil.get("kr.jclab.netty.channel.iocp.backend", "jni");
+        if ("inmemory".equalsIgnoreCase(backendName)) {
+            BACKEND = new InMemoryIocpBackend();
+        } else if ("jni".equalsIgnoreCase(backendName)) {
+            BACKEND = new JniIocpBackend();
+        } else {
+            throw new IllegalArgumentException("Unknown IOCP backend: " + backendName);
         }
+        logger.debug("-Dkr.jclab.netty.channel.iocp.backend: {}", BACKEND.name());
 
-        // Preload all classes that will be used in the OnLoad(...) function of JNI to eliminate the possiblity of a
-        // class-loader deadlock. This is a workaround for https://github.com/netty/netty/issues/11209.
-
-        // This needs to match all the classes that are loaded via NETTY_JNI_UTIL_LOAD_CLASS or looked up via
-        // NETTY_JNI_UTIL_FIND_CLASS.
-        ClassInitializerUtil.tryLoadClasses(
-                Native.class,
-                WinHandle.class,
-                WsaEventHandle.class,
-                ChannelException.class
-        );
-
-        try {
-            // First, try calling a side-effect free JNI method to see if the library was already
-            // loaded by the application.
-            NativeStaticallyReferencedJniMethods.nop();
-        } catch (UnsatisfiedLinkError ignore) {
-            // The library was not previously loaded, load it now.
-            loadNativeLibrary();
-        } finally {
-            try {
-                if (selector != null) {
-                    selector.close();
-                }
-            } catch (IOException ignore) {
-                // Just ignore
-            }
-        }
+        PIPE_ACCESS_DUPLEX = BACKEND.pipeAccessDuplex();
+        PIPE_ACCESS_INBOUND = BACKEND.pipeAccessInbound();
+        PIPE_ACCESS_OUTBOUND = BACKEND.pipeAccessOutbound();
+        FILE_FLAG_OVERLAPPED = BACKEND.fileFlagOverlapped();
+        PIPE_READMODE_BYTE = BACKEND.flagPipeReadmodeByte();
+        PIPE_READMODE_MESSAGE = BACKEND.flagPipeReadmodeMessage();
+        GENERIC_READ = BACKEND.flagGenericRead();
+        GENERIC_WRITE = BACKEND.flagGenericWrite();
+        OPEN_EXISTING = BACKEND.flagOpenExisting();
+        ERROR_NOT_FOUND = BACKEND.errorNotFound();
+        ERROR_IO_PENDING = BACKEND.errorIoPending();
+        ERROR_BROKEN_PIPE = BACKEND.errorBrokenPipe();
+        FILE_SKIP_COMPLETION_PORT_ON_SUCCESS = BACKEND.fileSkipCompletionPortOnSuccess();
+    }
 
-        PIPE_ACCESS_DUPLEX = NativeStaticallyReferencedJniMethods.pipeAccessDuplex();
-        PIPE_ACCESS_INBOUND = NativeStaticallyReferencedJniMethods.pipeAccessInbound();
-        PIPE_ACCESS_OUTBOUND = NativeStaticallyReferencedJniMethods.pipeAccessOutbound();
-        FILE_FLAG_OVERLAPPED = NativeStaticallyReferencedJniMethods.fileFlagOverlapped();
-        PIPE_READMODE_BYTE = NativeStaticallyReferencedJniMethods.flagPipeReadmodeByte();
-        PIPE_READMODE_MESSAGE = NativeStaticallyReferencedJniMethods.flagPipeReadmodeMessage();
-        GENERIC_READ = NativeStaticallyReferencedJniMethods.flagGenericRead();
-        GENERIC_WRITE = NativeStaticallyReferencedJniMethods.flagGenericWrite();
-        OPEN_EXISTING = NativeStaticallyReferencedJniMethods.flagOpenExisting();
-        ERROR_NOT_FOUND = NativeStaticallyReferencedJniMethods.errorNotFound();
-    }
-
-    private static void loadNativeLibrary() {
-        String name = PlatformDependent.normalizedOs();
-        if (!"windows".equals(name)) {
-            throw new IllegalStateException("Only supported on Windows");
-        }
-        String staticLibName = "netty_transport_native_iocp";
-        String sharedLibName = staticLibName + '_' + PlatformDependent.normalizedArch();
-        ClassLoader cl = PlatformDependent.getClassLoader(Native.class);
-        try {
-            NativeLibraryLoader.load(sharedLibName, cl);
-        } catch (UnsatisfiedLinkError e1) {
-            try {
-                NativeLibraryLoader.load(staticLibName, cl);
-                logger.debug("Failed to load {}", sharedLibName, e1);
-            } catch (UnsatisfiedLinkError e2) {
-                ThrowableUtil.addSuppressed(e1, e2);
-                throw e1;
-            }
-        }
+    /**
+     * Returns the {@link IocpBackend} which performs the native calls.
+     */
+    static IocpBackend backend() {
+        return BACKEND;
     }
 
     private Native() {
@@ -132,7 +102,7 @@ public final class Native {
     }
 
     public static WinHandle createEvent(boolean manualReset, boolean initialState) throws Errors.NativeIoException {
-        long handle = createEvent0(0, manualReset, initialState, null);
+        long handle = BACKEND.createEvent(0, manualReset, initialState, null);
         if (handle <= 0) {
             throw Errors.newIOException("createEvent", (int) handle);
         }
@@ -140,18 +110,18 @@ public final class Native {
     }
 
     public static WinHandle newIoCompletionPort(long context, int numberOfConcurrentThreads) throws ChannelException {
-        return new WinHandle(createIoCompletionPort0(INVALID_HANDLE_VALUE, 0, context, numberOfConcurrentThreads));
+        return new WinHandle(BACKEND.createIoCompletionPort(INVALID_HANDLE_VALUE, 0, context, numberOfConcurrentThreads));
     }
 
     public static void attachIoCompletionPort(AbstractWinHandle handle, AbstractWinHandle existingCompletionPort, long context) throws Errors.NativeIoException {
-        long newHandle = createIoCompletionPort0(handle.longValue(), existingCompletionPort.longValue(), context, 0);
+        long newHandle = BACKEND.createIoCompletionPort(handle.longValue(), existingCompletionPort.longValue(), context, 0);
         if (newHandle <= 0) {
             throw Errors.newIOException("attachIoCompletionPort", (int) newHandle);
         }
     }
 
     public static WinHandle createFile(String fileName, int desiredAccess, int shareMode, long securityAttributesPointer, int creationDisposition, int flagsAndAttributes, long templateFile) throws Errors.NativeIoException {
-        long handle = createFile0(fileName, desiredAccess, shareMode, securityAttributesPointer, creationDisposition, flagsAndAttributes, templateFile);
+        long handle = BACKEND.createFile(fileName, desiredAccess, shareMode, securityAttributesPointer, creationDisposition, flagsAndAttributes, templateFile);
         if (handle <= 0) {
             throw Errors.newIOException("createFile", (int) handle);
         }
@@ -159,11 +129,11 @@ public final class Native {
     }
 
     static int iocpWait(WinHandle iocpHandle, OverlappedEntryArray events, boolean immediatePoll) throws IOException {
-        return iocpWait(iocpHandle, events, immediatePoll ? 0 : -1);
+        return iocpWait(iocpHandle, events, immediatePoll ? 0 : IOCP_WAIT_INFINITE);
     }
 
     static int iocpWait(WinHandle iocpHandle, OverlappedEntryArray events, int timeoutMillis) throws IOException {
-        int ready = getQueuedCompletionStatusExWait(iocpHandle.longValue(), events.memoryAddress(), events.length(), timeoutMillis);
+        int ready = BACKEND.getQueuedCompletionStatusEx(iocpHandle.longValue(), events.memoryAddress(), events.length(), timeoutMillis);
         if (ready < 0) {
             throw newIOException("epoll_wait", ready);
         }
@@ -171,7 +141,7 @@ public final class Native {
     }
 
     static int iocpBusyWait(WinHandle iocpHandle, OverlappedEntryArray events) throws IOException {
-        int ready = getQueuedCompletionStatusExBusyWait(iocpHandle.longValue(), events.memoryAddress(), events.length());
+        int ready = BACKEND.getQueuedCompletionStatusExBusyWait(iocpHandle.longValue(), events.memoryAddress(), events.length());
         if (ready < 0) {
             throw newIOException("epoll_wait", ready);
         }
@@ -179,40 +149,104 @@ public final class Native {
     }
 
     static int postWakeup(WinHandle iocpHandle, int completionKey) {
-        return postQueuedCompletionStatus0(iocpHandle.longValue(), 0, completionKey, 0);
+        return BACKEND.postQueuedCompletionStatus(iocpHandle.longValue(), 0, completionKey, 0);
+    }
+
+    /**
+     * @return the handle of a high resolution waitable timer, or the negative windows error code if not supported
+     */
+    static long createHighResolutionTimer() {
+        return BACKEND.createHighResolutionTimer();
+    }
+
+    static int setWaitableTimer(long handle, long delayNanos) {
+        return BACKEND.setWaitableTimer(handle, delayNanos);
+    }
+
+    static int waitForSingleObject(long handle) {
+        return BACKEND.waitForSingleObject(handle);
+    }
+
+    static int closeHandle(long handle) {
+        return BACKEND.closeHandle(handle);
+    }
+
+    static int wsaCloseEvent(long handle) {
+        return BACKEND.wsaCloseEvent(handle);
     }
 
-    private static native long createIoCompletionPort0(long handle, long existingCompletionPort, long context, int numberOfConcurrentThreads) throws ChannelException;
+    static int readOverlappedEntry(long pointer, OverlappedEntry entry) {
+        return BACKEND.readOverlappedEntry(pointer, entry);
+    }
+
+    static long createNamedPipe(String name, int openMode, int maxInstances, int outBufferSize, int inBufferSize, int defaultTimeout, long securityAttributesPointer) {
+        return BACKEND.createNamedPipe(name, openMode, maxInstances, outBufferSize, inBufferSize, defaultTimeout, securityAttributesPointer);
+    }
+
+    static int connectNamedPipe(long handle, long overlappedPointer) {
+        return BACKEND.connectNamedPipe(handle, overlappedPointer);
+    }
+
+    static int overlappedInitialize(long memory, long eventHandle, long fileHandle, long bufferAddress, int bufferSize, int contextIndex) {
+        return BACKEND.overlappedInitialize(memory, eventHandle, fileHandle, bufferAddress, bufferSize, contextIndex);
+    }
+
+    static int cancelIoEx(long handle, long overlappedPointer) {
+        return BACKEND.cancelIoEx(handle, overlappedPointer);
+    }
+
+    // JNI methods, registered by netty_iocp_native.c. Only called by JniIocpBackend.
+
+    static native long createIoCompletionPort0(long handle, long existingCompletionPort, long context, int numberOfConcurrentThreads) throws ChannelException;
 
     static native int readOverlappedEntry0(long pointer, OverlappedEntry entry);
     static native int readNativeOverlapped0(NativeOverlapped entry);
 
-    private static native int getQueuedCompletionStatusExWait(long handle, long entries, int count, int timeout);
-    private static native int getQueuedCompletionStatusExBusyWait(long handle, long entries, int count);
+    static native int getQueuedCompletionStatusExWait(long handle, long entries, int count, int timeout);
+    static native int getQueuedCompletionStatusExBusyWait(long handle, long entries, int count);
 
-    private static native int postQueuedCompletionStatus0(long handle, int numberOfBytesTransferred, long completionKey, long overlappedPointer);
+    static native int postQueuedCompletionStatus0(long handle, int numberOfBytesTransferred, long completionKey, long overlappedPointer);
 
     static native long createNamedPipe0(String name, int openMode, int maxInstances, int outBufferSize, int inBufferSize, int defaultTimeout, long securityAttributesPointer);
     static native int connectNamedPipe0(long handle, long overlappedPointer);
     static native long createEvent0(long securityAttributePointer, boolean manualReset, boolean initialState, String name);
-    static native int overlappedInitialize0(long memory, long eventHandle, long fileHandle, int bufferSize);
-    static native int startOverlappedRead0(long overlappedPointer);
-    static native int startOverlappedWrite0(long overlappedPointer, int dataSize);
+    static native long createHighResolutionTimer0();
+    static native int setWaitableTimer0(long handle, long delayNanos);
+    static native int waitForSingleObject0(long handle);
+    static native int overlappedInitialize0(long memory, long eventHandle, long fileHandle, long bufferAddress, int bufferSize, int contextIndex);
+    static native int startOverlappedRead0(long overlappedPointer, long bufferAddress, int bufferSize);
+    static native int startOverlappedWrite0(long overlappedPointer, long bufferAddress, int dataSize);
     static native int cancelIoEx0(long handle, long overlappedPointer);
     static native long getNamedPipeClientProcessId0(long handle);
     static native long createFile0(String fileName, int desiredAccess, int shareMode, long securityAttributesPointer, int creationDisposition, int flagsAndAttributes, long templateFile);
     static native int setPipeMessageReadMode0(long handle, int mode);
+    static native int setFileCompletionNotificationModes0(long handle, int flags);
 
-    static int startOverlappedRead(NativeOverlapped overlapped) throws Errors.NativeIoException {
-        int rc = startOverlappedRead0(overlapped.memoryAddress());
+    /**
+     * @return {@link #IO_PENDING} if the read is pending, otherwise the number of bytes which were read immediately
+     */
+    static int startOverlappedRead(NativeOverlapped overlapped, long bufferAddress, int bufferSize)
+            throws Errors.NativeIoException {
+        int rc = BACKEND.startOverlappedRead(overlapped.memoryAddress(), bufferAddress, bufferSize);
+        if (rc == -ERROR_IO_PENDING) {
+            return IO_PENDING;
+        }
         if (rc < 0) {
             throw Errors.newIOException("startOverlappedRead", rc);
         }
         return rc;
     }
 
-    static int startOverlappedWrite(NativeOverlapped overlapped, int dataSize) throws Errors.NativeIoException {
-        int rc = startOverlappedWrite0(overlapped.memoryAddress(), dataSize);
+    /**
+     * @return {@link #IO_PENDING} if the write is pending, otherwise the number of bytes which were written
+     * immediately
+     */
+    static int startOverlappedWrite(NativeOverlapped overlapped, long bufferAddress, int dataSize)
+            throws Errors.NativeIoException {
+        int rc = BACKEND.startOverlappedWrite(overlapped.memoryAddress(), bufferAddress, dataSize);
+        if (rc == -ERROR_IO_PENDING) {
+            return IO_PENDING;
+        }
         if (rc < 0) {
             throw Errors.newIOException("startOverlappedWrite", rc);
         }
@@ -220,7 +254,7 @@ public final class Native {
     }
 
     static long getNamedPipeClientProcessId(WinHandle handle) throws Errors.NativeIoException {
-        long rc = getNamedPipeClientProcessId0(handle.longValue());
+        long rc = BACKEND.getNamedPipeClientProcessId(handle.longValue());
         if (rc < 0) {
             throw Errors.newIOException("startOverlappedWrite", (int) rc);
         }
@@ -228,9 +262,16 @@ public final class Native {
     }
 
     static void setPipeMessageReadMode(WinHandle handle, int mode) throws Errors.NativeIoException {
-        long rc = setPipeMessageReadMode0(handle.longValue(), mode);
+        long rc = BACKEND.setPipeMessageReadMode(handle.longValue(), mode);
         if (rc < 0) {
             throw Errors.newIOException("setPipeMessageReadMode", (int) rc);
         }
     }
+
+    static void setFileCompletionNotificationModes(WinHandle handle, int flags) throws Errors.NativeIoException {
+        int rc = BACKEND.setFileCompletionNotificationModes(handle.longValue(), flags);
+        if (rc < 0) {
+            throw Errors.newIOException("setFileCompletionNotificationModes", rc);
+        }
+    }
 }
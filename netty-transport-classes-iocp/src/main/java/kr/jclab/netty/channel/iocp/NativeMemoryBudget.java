@@ -0,0 +1,99 @@
+package kr.jclab.netty.channel.iocp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upper bound for the native memory which the {@link IocpEventLoop}s of one {@link IocpEventLoopGroup} allocate
+ * themselves: the data buffers of {@link NativeOverlapped}s, the {@link OverlappedSlab} chunks and the
+ * {@link OverlappedEntryArray}s.
+ * <p>
+ * Memory which a loop can not work without is always {@link #reserve(long) reserved}, the data buffers of new
+ * overlappeds are only allocated if they {@link #tryReserve(long) fit}, so callers defer the operation otherwise.
+ * Once more than half of the budget is used {@link #readSizeLimit()} shrinks linearly, so reads pin less memory the
+ * closer the usage gets to the limit. A limit of 0 means unlimited, the usage is accounted anyway.
+ */
+final class NativeMemoryBudget {
+    private static final int MIN_READ_SIZE = 64;
+    private static final int MAX_THROTTLED_READ_SIZE = 65536;
+
+    private final AtomicLong used = new AtomicLong();
+    private volatile long limit;
+
+    NativeMemoryBudget(long limit) {
+        limit(limit);
+    }
+
+    /**
+     * Returns the limit in bytes, 0 if unlimited.
+     */
+    long limit() {
+        return limit;
+    }
+
+    void limit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit: " + limit + " (expected: >= 0)");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the number of bytes accounted to this budget.
+     */
+    long used() {
+        return used.get();
+    }
+
+    /**
+     * Account the given number of bytes, even if this exceeds the limit.
+     */
+    void reserve(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    /**
+     * Account the given number of bytes if they fit into the limit.
+     *
+     * @return {@code false} if nothing was accounted and the memory must not be allocated
+     */
+    boolean tryReserve(long bytes) {
+        if (bytes == 0) {
+            return true;
+        }
+        for (;;) {
+            long limit = this.limit;
+            long used = this.used.get();
+            if (limit > 0 && used + bytes > limit) {
+                return false;
+            }
+            if (this.used.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back bytes which were accounted by {@link #reserve(long)} or {@link #tryReserve(long)}.
+     */
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns the largest buffer size a new read should use, {@link Integer#MAX_VALUE} while the budget is not under
+     * pressure.
+     */
+    int readSizeLimit() {
+        long limit = this.limit;
+        if (limit == 0) {
+            return Integer.MAX_VALUE;
+        }
+        long lowWater = limit >> 1;
+        long used = this.used.get();
+        if (used <= lowWater) {
+            return Integer.MAX_VALUE;
+        }
+        long headroom = Math.max(0, limit - used);
+        return (int) Math.max(MIN_READ_SIZE, MAX_THROTTLED_READ_SIZE * headroom / (limit - lowWater));
+    }
+}
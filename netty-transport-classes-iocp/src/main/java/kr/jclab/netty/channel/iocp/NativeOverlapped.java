@@ -1,105 +1,267 @@
 package kr.jclab.netty.channel.iocp;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.SystemPropertyUtil;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * typedef struct _netty_iocp_native_overlapped {
- *     c overlapped;
+ *     OVERLAPPED overlapped;
+ *     DWORD      magic;
  *     HANDLE     fileHandle;
  *     DWORD      bufferSize;
+ *     DWORD      contextIndex;
+ *     char*      buffer;
  * } netty_iocp_native_overlapped_t;
+ * <p>
+ * The header is a slot of the {@link OverlappedSlab} of the {@link IocpEventLoop} that owns the completion port,
+ * the data buffer is allocated separately. An operation may also use the memory of a {@link ByteBuf} which is
+ * {@link #pin(ByteBuf) pinned} to this overlapped until the operation completed.
+ * <p>
+ * Once the last reference is released the overlapped goes back to the {@link OverlappedPool} it was acquired from,
+ * if the pool takes it, and is only freed otherwise.
+ * <p>
+ * An overlapped is confined to the {@link io.netty.channel.EventLoop} of the channel it was acquired for: operations
+ * are submitted there and completions are handed over to it, so the reference count is a plain field. Setting
+ * {@code kr.jclab.netty.channel.iocp.checkOverlappedLifecycle} makes every reference count change verify the owning
+ * thread and fail on the use of a freed overlapped.
+ * <p>
+ * Completions are dequeued from the completion port, so {@code hEvent} is left {@code NULL} and no kernel event is
+ * created.
  */
 public class NativeOverlapped {
-    public static final int SIZE_OF_HEADER = NativeStaticallyReferencedJniMethods.sizeOfNativeOverlappedStruct();
+    public static final int SIZE_OF_HEADER = Native.backend().sizeOfNativeOverlappedStruct();
 
-    private final int bufferSize;
+    // This needs to be consistent with netty_iocp_native.c
+    static final int OVERLAPPED_MAGIC = 0x0caffe00;
+    private static final boolean CHECK_LIFECYCLE =
+            SystemPropertyUtil.getBoolean("kr.jclab.netty.channel.iocp.checkOverlappedLifecycle", false);
+    static final int OFFSET_OF_EVENT_HANDLE = Native.backend().offsetofNativeOverlappedEventHandle();
+    static final int OFFSET_OF_MAGIC = Native.backend().offsetofNativeOverlappedMagic();
+    static final int OFFSET_OF_FILE_HANDLE = Native.backend().offsetofNativeOverlappedFileHandle();
+    static final int OFFSET_OF_BUFFER_SIZE = Native.backend().offsetofNativeOverlappedBufferSize();
+    static final int OFFSET_OF_CONTEXT_INDEX =
+            Native.backend().offsetofNativeOverlappedContextIndex();
 
-    private final ByteBuffer memory;
-    private long memoryAddress;
+    private final OverlappedPool pool;
+    private final int capacity;
+    private int bufferSize;
 
-    private final WinHandle event;
-    private AtomicInteger refCount = new AtomicInteger(1);
+    private final IocpCompletionContext context;
+    private final long memoryAddress;
 
-    private long internal;
-    private long internalHigh;
+    private final ByteBuffer buffer;
+    private long bufferAddress;
 
+    private int refCount = 1;
+    // The thread which acquired this overlapped, only tracked with CHECK_LIFECYCLE.
+    private Thread owner;
+    private ByteBuf pinned;
 
-    public NativeOverlapped(int bufferSize) throws Errors.NativeIoException {
-        this(null, bufferSize);
-    }
+    private long internal;
+    private long internalHigh;
 
 
-    public NativeOverlapped(AbstractWinHandle handle, int bufferSize) throws Errors.NativeIoException {
+    /**
+     * Use {@link OverlappedPool#acquire(AbstractIocpChannel, int, AbstractWinHandle, int)} instead.
+     *
+     * @param capacity the size of the data buffer to allocate, at least {@code bufferSize}. It must have been
+     *                 reserved from the {@link NativeMemoryBudget} of the slab, it is released once freed.
+     */
+    NativeOverlapped(OverlappedPool pool, OverlappedSlab slab, AbstractIocpChannel channel, int operation,
+                     AbstractWinHandle handle, int bufferSize, int capacity) {
+        assert capacity >= bufferSize;
+        this.pool = pool;
+        this.capacity = capacity;
         this.bufferSize = bufferSize;
+        if (CHECK_LIFECYCLE) {
+            owner = Thread.currentThread();
+        }
 
-        memory = Buffer.allocateDirectWithNativeOrder(SIZE_OF_HEADER + bufferSize);
-        memoryAddress = Buffer.memoryAddress(memory);
-        event = Native.createEvent(true, false);
-        Native.overlappedInitialize0(memoryAddress, event.longValue(), (handle != null) ? handle.longValue() : 0, bufferSize);
+        ByteBuffer buffer = null;
+        boolean success = false;
+        try {
+            if (capacity > 0) {
+                buffer = Buffer.allocateDirectWithNativeOrder(capacity);
+                bufferAddress = Buffer.memoryAddress(buffer);
+            }
+            this.buffer = buffer;
+            context = slab.allocate(channel, operation, this);
+            success = true;
+        } finally {
+            if (!success) {
+                if (buffer != null) {
+                    Buffer.free(buffer);
+                }
+                slab.budget().release(capacity);
+            }
+        }
+        memoryAddress = context.memoryAddress();
+        Native.overlappedInitialize(memoryAddress, 0, (handle != null) ? handle.longValue() : 0,
+                bufferAddress, bufferSize, context.index());
 
-        MemoryLeakDetector.put(memoryAddress, this);
+        MemoryLeakDetector.put(MemoryLeakDetector.Kind.NATIVE_OVERLAPPED, memoryAddress, capacity, this);
+    }
+
+    /**
+     * Prepare a pooled overlapped for the given operation of the given channel.
+     */
+    void reuse(AbstractIocpChannel channel, int operation, AbstractWinHandle handle, int bufferSize) {
+        assert refCount == 0 && bufferSize <= capacity;
+        this.bufferSize = bufferSize;
+        refCount = 1;
+        if (CHECK_LIFECYCLE) {
+            owner = Thread.currentThread();
+        }
+        context.attach(channel, operation, this);
+        Native.overlappedInitialize(memoryAddress, 0, (handle != null) ? handle.longValue() : 0,
+                bufferAddress, bufferSize, context.index());
     }
 
     public void initialize(AbstractWinHandle handle) {
-        Native.overlappedInitialize0(memoryAddress, event.longValue(), handle.longValue(), bufferSize);
+        Native.overlappedInitialize(memoryAddress, 0, handle.longValue(),
+                bufferAddress, bufferSize, context.index());
     }
 
     public long memoryAddress() {
         return memoryAddress;
     }
 
-    public ByteBuffer memory() {
-        return memory;
+    IocpCompletionContext context() {
+        return context;
+    }
+
+    /**
+     * Returns the address of the own data buffer, 0 if this overlapped was created without one.
+     */
+    long bufferAddress() {
+        return bufferAddress;
+    }
+
+    /**
+     * Returns the size of the own data buffer.
+     */
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the allocated size of the own data buffer, which may be larger than {@link #bufferSize()}.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Keep the given buffer alive while the kernel may access its memory. It is released by {@link #unpin()} or
+     * once this overlapped is freed, which only happens after the pending operation completed.
+     */
+    void pin(ByteBuf buf) {
+        assert pinned == null;
+        pinned = buf;
+    }
+
+    /**
+     * Returns the pinned buffer and transfers its ownership to the caller.
+     */
+    ByteBuf unpin() {
+        ByteBuf buf = pinned;
+        pinned = null;
+        return buf;
     }
 
     public void refInc() {
-        refCount.incrementAndGet();
+        if (CHECK_LIFECYCLE) {
+            checkLifecycle("refInc");
+        }
+        refCount++;
     }
 
     public void refDec() {
-        if (refCount.decrementAndGet() <= 0) {
+        if (CHECK_LIFECYCLE) {
+            checkLifecycle("refDec");
+        }
+        if (--refCount <= 0) {
             free();
         }
     }
 
     public int refCount() {
-        return refCount.get();
+        return refCount;
+    }
+
+    /**
+     * Release the reference of the operation whose completion was dequeued after the event loop of its channel was
+     * shut down. That loop closed the channel before, so no other thread touches this overlapped anymore.
+     */
+    void releaseOrphaned() {
+        if (CHECK_LIFECYCLE) {
+            owner = Thread.currentThread();
+        }
+        refDec();
+    }
+
+    private void checkLifecycle(String operation) {
+        if (refCount <= 0) {
+            throw new IllegalStateException(operation + " of a freed overlapped: " + memoryAddress);
+        }
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException(operation + " of overlapped " + memoryAddress + " from "
+                    + Thread.currentThread().getName() + ", owned by " + owner.getName());
+        }
     }
 
     private void free() {
-        if (memoryAddress != 0) {
-            // remove magic
-            memory.position(0);
-            memory.limit(memory.capacity());
-            memory.putInt(0);
-
-            MemoryLeakDetector.remove(memoryAddress);
-            Buffer.free(memory);
-            memoryAddress = 0;
+        ByteBuf buf = unpin();
+        if (buf != null) {
+            buf.release();
         }
-        if (event.isOpen()) {
-            try {
-                event.close();
-            } catch (IOException e) {
+        if (context.overlapped() == this) {
+            // No operation is pending anymore, so the slot keeps no stale channel until it is reused.
+            context.attach(null, IocpCompletionContext.OP_NONE, this);
+            if (pool.offer(this)) {
+                return;
             }
         }
+        destroy();
     }
 
-    public void readData(ByteBuf dest, int length) {
-        memory.limit(SIZE_OF_HEADER + length);
-        memory.position(SIZE_OF_HEADER);
-        dest.writeBytes(memory);
+    /**
+     * Free the data buffer and the slab slot.
+     */
+    void destroy() {
+        if (bufferAddress != 0) {
+            Buffer.free(buffer);
+            bufferAddress = 0;
+            context.slab().budget().release(capacity);
+        }
+        if (context.overlapped() == this) {
+            MemoryLeakDetector.remove(MemoryLeakDetector.Kind.NATIVE_OVERLAPPED, memoryAddress, capacity);
+            context.slab().release(context);
+        }
     }
 
-    public int writeData(ByteBuf byteBuf) {
-        int available = Math.min(byteBuf.readableBytes(), bufferSize);
-        memory.limit(SIZE_OF_HEADER + available);
-        memory.position(SIZE_OF_HEADER);
-        byteBuf.readBytes(memory);
+    /**
+     * Copy the given bytes of the given buffer, as many as fit, into the own data buffer. The reader index is not
+     * changed as the bytes are only removed once the write completed.
+     */
+    public int writeData(ByteBuf byteBuf, int index, int length) {
+        int available = Math.min(length, bufferSize);
+        buffer.limit(available);
+        buffer.position(0);
+        byteBuf.getBytes(index, buffer);
         return available;
     }
+
+    /**
+     * Copy the remaining bytes of the given buffers into the own data buffer, they must fit.
+     */
+    public int writeData(ByteBuffer[] nioBuffers, int offset, int end) {
+        buffer.clear();
+        for (int i = offset; i < end; i++) {
+            buffer.put(nioBuffers[i]);
+        }
+        return buffer.position();
+    }
 }
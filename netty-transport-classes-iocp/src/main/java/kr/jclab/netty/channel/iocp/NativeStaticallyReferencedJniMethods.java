@@ -42,6 +42,15 @@ final class NativeStaticallyReferencedJniMethods {
     static native int sizeOfOverlappedEntry();
     static native int sizeOfNativeOverlappedStruct();
 
+    static native int offsetofOverlappedEntryCompletionKey();
+    static native int offsetofOverlappedEntryOverlapped();
+    static native int offsetofOverlappedEntryNumberOfBytesTransferred();
+    static native int offsetofNativeOverlappedEventHandle();
+    static native int offsetofNativeOverlappedMagic();
+    static native int offsetofNativeOverlappedFileHandle();
+    static native int offsetofNativeOverlappedBufferSize();
+    static native int offsetofNativeOverlappedContextIndex();
+
     static native int pipeAccessDuplex();
     static native int pipeAccessInbound();
     static native int pipeAccessOutbound();
@@ -54,6 +63,9 @@ final class NativeStaticallyReferencedJniMethods {
     static native int flagPipeReadmodeMessage();
     static native int flagPipeReadmodeByte();
     static native int errorNotFound();
+    static native int errorIoPending();
+    static native int errorBrokenPipe();
+    static native int fileSkipCompletionPortOnSuccess();
 
     /**
      * Close Handle
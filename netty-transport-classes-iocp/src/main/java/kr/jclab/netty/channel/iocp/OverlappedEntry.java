@@ -1,5 +1,11 @@
 package kr.jclab.netty.channel.iocp;
 
+/**
+ * Decoded view of a single {@code OVERLAPPED_ENTRY} and the {@code netty_iocp_native_overlapped_t} header it points to.
+ * <p>
+ * Instances are reused by {@link OverlappedEntryArray#entry(int)}, so the values are only valid until the next
+ * entry is decoded.
+ */
 public class OverlappedEntry {
     private long completionKey = 0;
     private long overlappedPointer = 0;
@@ -10,6 +16,26 @@ public class OverlappedEntry {
     private long    fileHandle = 0;
     private long    eventHandle = 0;
     private int     bufferSize = 0;
+    private int     contextIndex = -1;
+
+    void setEntry(long completionKey, long overlappedPointer, int numberOfBytesTransferred) {
+        this.completionKey = completionKey;
+        this.overlappedPointer = overlappedPointer;
+        this.numberOfBytesTransferred = numberOfBytesTransferred;
+        this.overlappedValid = false;
+        this.fileHandle = 0;
+        this.eventHandle = 0;
+        this.bufferSize = 0;
+        this.contextIndex = -1;
+    }
+
+    void setOverlapped(long fileHandle, long eventHandle, int bufferSize, int contextIndex) {
+        this.overlappedValid = true;
+        this.fileHandle = fileHandle;
+        this.eventHandle = eventHandle;
+        this.bufferSize = bufferSize;
+        this.contextIndex = contextIndex;
+    }
 
     public long getCompletionKey() {
         return completionKey;
@@ -38,4 +64,23 @@ public class OverlappedEntry {
     public int getBufferSize() {
         return bufferSize;
     }
+
+    /**
+     * Returns the index of the {@link IocpCompletionContext} which owns the overlapped header.
+     */
+    public int getContextIndex() {
+        return contextIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "OverlappedEntry{" +
+                "completionKey=" + completionKey +
+                ", overlappedPointer=" + overlappedPointer +
+                ", numberOfBytesTransferred=" + numberOfBytesTransferred +
+                ", overlappedValid=" + overlappedValid +
+                ", fileHandle=" + fileHandle +
+                ", contextIndex=" + contextIndex +
+                '}';
+    }
 }
@@ -15,26 +15,75 @@
  */
 package kr.jclab.netty.channel.iocp;
 
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.SystemPropertyUtil;
+
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static kr.jclab.netty.channel.iocp.MemoryLeakDetector.Kind.OVERLAPPED_ENTRY_ARRAY;
 
 /**
  * This is an internal datastructure which can be directly passed to OVERLAPPED_ENTRY to reduce the overhead.
+ * <p>
+ * The array sizes itself between a minimum and a maximum length based on the dequeues reported via
+ * {@link #record(int)}: it doubles when a dequeue filled it completely and halves once all dequeues used at most a
+ * quarter of it for {@code kr.jclab.netty.channel.iocp.eventArrayShrinkDelayMillis} (1000 by default). The delay is
+ * measured in time, not in dequeues, as a loop which polls may dequeue thousands of times within a millisecond.
  */
 public final class OverlappedEntryArray {
-    private static final int OVERLAPPED_ENTRY_SIZE = NativeStaticallyReferencedJniMethods.sizeOfOverlappedEntry();
+    private static final long SHRINK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+            SystemPropertyUtil.getLong("kr.jclab.netty.channel.iocp.eventArrayShrinkDelayMillis", 1000)));
+
+    private static final int OVERLAPPED_ENTRY_SIZE = Native.backend().sizeOfOverlappedEntry();
+    private static final int OVERLAPPED_ENTRY_COMPLETION_KEY_OFFSET =
+            Native.backend().offsetofOverlappedEntryCompletionKey();
+    private static final int OVERLAPPED_ENTRY_OVERLAPPED_OFFSET =
+            Native.backend().offsetofOverlappedEntryOverlapped();
+    private static final int OVERLAPPED_ENTRY_NUMBER_OF_BYTES_TRANSFERRED_OFFSET =
+            Native.backend().offsetofOverlappedEntryNumberOfBytesTransferred();
+    private static final int ADDRESS_SIZE = Buffer.addressSize();
 
+    private final NativeMemoryBudget budget;
+    private final int minLength;
+    private final int maxLength;
     private ByteBuffer memory;
     private long memoryAddress;
     private int length;
+    // Whether all dequeues since lowUtilizationStartNanos used at most a quarter of the array.
+    private boolean lowUtilization;
+    private long lowUtilizationStartNanos;
+    // Written by the EventLoop only, read by metrics.
+    private volatile int capacity;
+    private volatile int highWaterMark;
+
+    // Flyweight which is handed out by entry(int) so decoding a completion never allocates.
+    private final OverlappedEntry entry = new OverlappedEntry();
 
     OverlappedEntryArray(int length) {
+        this(length, length, length, new NativeMemoryBudget(0));
+    }
+
+    /**
+     * @param budget the budget which the memory of this array is accounted to, even beyond its limit
+     */
+    OverlappedEntryArray(int length, int minLength, int maxLength, NativeMemoryBudget budget) {
         if (length < 1) {
             throw new IllegalArgumentException("length must be >= 1 but was " + length);
         }
+        if (minLength < 1 || minLength > length || maxLength < length) {
+            throw new IllegalArgumentException("expected: 1 <= minLength (" + minLength + ") <= length (" + length +
+                    ") <= maxLength (" + maxLength + ")");
+        }
+        this.budget = budget;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
         this.length = length;
+        capacity = length;
         memory = Buffer.allocateDirectWithNativeOrder(calculateBufferCapacity(length));
         memoryAddress = Buffer.memoryAddress(memory);
-        MemoryLeakDetector.put(memoryAddress, this);
+        budget.reserve(memory.capacity());
+        MemoryLeakDetector.put(OVERLAPPED_ENTRY_ARRAY, memoryAddress, memory.capacity(), this);
     }
 
     /**
@@ -52,19 +101,67 @@ public final class OverlappedEntryArray {
         return length;
     }
 
+    /**
+     * Returns the current length, safe to call from any thread.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the largest number of entries that were dequeued at once, safe to call from any thread.
+     */
+    int highWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Record the number of entries that were dequeued into this {@link OverlappedEntryArray} and resize it if needed.
+     * Must only be called once the entries were processed, as resizing drops the content.
+     */
+    void record(int ready) {
+        if (ready > highWaterMark) {
+            highWaterMark = ready;
+        }
+        if (ready >= length) {
+            lowUtilization = false;
+            if (length < maxLength) {
+                increase();
+            }
+        } else if (ready <= length >> 2 && length > minLength) {
+            long nowNanos = System.nanoTime();
+            if (!lowUtilization) {
+                lowUtilization = true;
+                lowUtilizationStartNanos = nowNanos;
+            } else if (nowNanos - lowUtilizationStartNanos >= SHRINK_DELAY_NANOS) {
+                lowUtilization = false;
+                resize(Math.max(minLength, length >> 1));
+            }
+        } else {
+            lowUtilization = false;
+        }
+    }
+
     /**
      * Increase the storage of this {@link OverlappedEntryArray}.
      */
     void increase() {
         // double the size
-        length <<= 1;
+        resize((int) Math.min((long) length << 1, maxLength));
+    }
+
+    private void resize(int newLength) {
         // There is no need to preserve what was in the memory before.
-        ByteBuffer buffer = Buffer.allocateDirectWithNativeOrder(calculateBufferCapacity(length));
+        ByteBuffer buffer = Buffer.allocateDirectWithNativeOrder(calculateBufferCapacity(newLength));
+        MemoryLeakDetector.remove(OVERLAPPED_ENTRY_ARRAY, memoryAddress, memory.capacity());
+        budget.release(memory.capacity());
         Buffer.free(memory);
-        MemoryLeakDetector.remove(memoryAddress);
         memory = buffer;
         memoryAddress = Buffer.memoryAddress(buffer);
-        MemoryLeakDetector.put(memoryAddress, this);
+        budget.reserve(memory.capacity());
+        MemoryLeakDetector.put(OVERLAPPED_ENTRY_ARRAY, memoryAddress, memory.capacity(), this);
+        length = newLength;
+        capacity = newLength;
     }
 
     /**
@@ -72,19 +169,51 @@ public final class OverlappedEntryArray {
      */
     void free() {
         if (memoryAddress != 0) {
-            MemoryLeakDetector.remove(memoryAddress);
+            MemoryLeakDetector.remove(OVERLAPPED_ENTRY_ARRAY, memoryAddress, memory.capacity());
+            budget.release(memory.capacity());
             Buffer.free(memory);
             memoryAddress = 0;
         }
     }
 
-    public OverlappedEntry getEntry(int index) {
-        long n = (long) index * (long) OVERLAPPED_ENTRY_SIZE;
-        OverlappedEntry entry = new OverlappedEntry();
-        Native.readOverlappedEntry0(memoryAddress + n, entry);
+    /**
+     * Decode the {@code OVERLAPPED_ENTRY} at the given index.
+     * <p>
+     * The returned {@link OverlappedEntry} is shared by all calls on this {@link OverlappedEntryArray} and is
+     * overwritten by the next call, so it must not be retained.
+     */
+    OverlappedEntry entry(int index) {
+        long address = memoryAddress + (long) index * (long) OVERLAPPED_ENTRY_SIZE;
+        if (!PlatformDependent.hasUnsafe()) {
+            // The overlapped header lives outside of our memory so we need JNI to follow the pointer.
+            Native.readOverlappedEntry(address, entry);
+            return entry;
+        }
+
+        long overlappedPointer = getPointer(address + OVERLAPPED_ENTRY_OVERLAPPED_OFFSET);
+        entry.setEntry(
+                getPointer(address + OVERLAPPED_ENTRY_COMPLETION_KEY_OFFSET),
+                overlappedPointer,
+                PlatformDependent.getInt(address + OVERLAPPED_ENTRY_NUMBER_OF_BYTES_TRANSFERRED_OFFSET));
+        if (overlappedPointer != 0 &&
+                PlatformDependent.getInt(overlappedPointer + NativeOverlapped.OFFSET_OF_MAGIC) ==
+                        NativeOverlapped.OVERLAPPED_MAGIC) {
+            entry.setOverlapped(
+                    getPointer(overlappedPointer + NativeOverlapped.OFFSET_OF_FILE_HANDLE),
+                    getPointer(overlappedPointer + NativeOverlapped.OFFSET_OF_EVENT_HANDLE),
+                    PlatformDependent.getInt(overlappedPointer + NativeOverlapped.OFFSET_OF_BUFFER_SIZE),
+                    PlatformDependent.getInt(overlappedPointer + NativeOverlapped.OFFSET_OF_CONTEXT_INDEX));
+        }
         return entry;
     }
 
+    private static long getPointer(long address) {
+        if (ADDRESS_SIZE == 8) {
+            return PlatformDependent.getLong(address);
+        }
+        return PlatformDependent.getInt(address);
+    }
+
     private static int calculateBufferCapacity(int capacity) {
         return capacity * OVERLAPPED_ENTRY_SIZE;
     }
@@ -0,0 +1,158 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of idle {@link NativeOverlapped}s owned by one {@link IocpEventLoop}.
+ * <p>
+ * A freed overlapped keeps its {@link OverlappedSlab} slot and its data buffer and is handed out again by
+ * {@link #acquire(AbstractIocpChannel, int, AbstractWinHandle, int)}, so connecting and accepting pipes does not pay
+ * for direct allocations every time. Overlappeds are bucketed by the power of two size class of
+ * their data buffer; buffers larger than the largest class are not pooled. The number of pooled overlappeds per class
+ * can be configured with {@code kr.jclab.netty.channel.iocp.overlappedPoolSize}, 0 disables pooling.
+ * <p>
+ * The data buffers of new overlappeds are accounted to the {@link NativeMemoryBudget} of the slab; pooled
+ * overlappeds stay accounted until they are freed.
+ * <p>
+ * Like the slab, the pool is used from the {@link io.netty.channel.EventLoop} of accepted channels as well, so it is
+ * guarded by a lock.
+ */
+final class OverlappedPool {
+    private static final int MAX_POOLED_PER_CLASS = Math.max(0,
+            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.overlappedPoolSize", 256));
+    private static final int MIN_CLASS_SHIFT = 6;
+    private static final int MAX_CLASS_SHIFT = 16;
+    // Class 0 holds overlappeds without a data buffer.
+    private static final int NUM_CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 2;
+
+    private final OverlappedSlab slab;
+    private final ArrayDeque<NativeOverlapped>[] classes;
+    private boolean freed;
+
+    // Written with the lock held
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long retainedBytes;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    OverlappedPool(OverlappedSlab slab) {
+        this.slab = slab;
+        classes = new ArrayDeque[NUM_CLASSES];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayDeque<NativeOverlapped>();
+        }
+    }
+
+    /**
+     * Returns an overlapped for the given operation of the given channel, which is pooled if possible.
+     *
+     * @return {@code null} if a new data buffer does not fit into the {@link NativeMemoryBudget}, the operation
+     *         should be deferred until memory was released
+     */
+    NativeOverlapped acquire(AbstractIocpChannel channel, int operation, AbstractWinHandle handle, int bufferSize) {
+        int sizeClass = sizeClass(bufferSize);
+        NativeOverlapped overlapped = null;
+        synchronized (this) {
+            if (sizeClass >= 0) {
+                overlapped = classes[sizeClass].pollFirst();
+            }
+            if (overlapped != null) {
+                hits++;
+                retainedBytes -= retainedBytes(overlapped);
+            } else {
+                misses++;
+            }
+        }
+        if (overlapped != null) {
+            overlapped.reuse(channel, operation, handle, bufferSize);
+            return overlapped;
+        }
+        int capacity = sizeClass >= 0 ? capacity(sizeClass) : bufferSize;
+        if (!slab.budget().tryReserve(capacity)) {
+            return null;
+        }
+        return new NativeOverlapped(this, slab, channel, operation, handle, bufferSize, capacity);
+    }
+
+    /**
+     * Take the given overlapped, whose last reference was released, back into the pool.
+     *
+     * @return {@code false} if the overlapped was not pooled and must be freed by the caller
+     */
+    synchronized boolean offer(NativeOverlapped overlapped) {
+        if (freed) {
+            return false;
+        }
+        int sizeClass = sizeClass(overlapped.capacity());
+        if (sizeClass < 0 || classes[sizeClass].size() >= MAX_POOLED_PER_CLASS) {
+            return false;
+        }
+        classes[sizeClass].addFirst(overlapped);
+        retainedBytes += retainedBytes(overlapped);
+        return true;
+    }
+
+    /**
+     * Free all pooled overlappeds, later offers are refused.
+     */
+    void free() {
+        ArrayDeque<NativeOverlapped> pooled = new ArrayDeque<NativeOverlapped>();
+        synchronized (this) {
+            if (freed) {
+                return;
+            }
+            freed = true;
+            for (ArrayDeque<NativeOverlapped> c : classes) {
+                pooled.addAll(c);
+                c.clear();
+            }
+            retainedBytes = 0;
+        }
+        for (NativeOverlapped overlapped : pooled) {
+            overlapped.destroy();
+        }
+    }
+
+    /**
+     * Returns the number of overlappeds which were taken from the pool.
+     */
+    long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of overlappeds which had to be created as the pool had none of the size class.
+     */
+    long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the native memory held by pooled overlappeds, headers included.
+     */
+    long retainedBytes() {
+        return retainedBytes;
+    }
+
+    private static long retainedBytes(NativeOverlapped overlapped) {
+        return NativeOverlapped.SIZE_OF_HEADER + overlapped.capacity();
+    }
+
+    // Returns -1 if buffers of the given size are not pooled
+    private static int sizeClass(int bufferSize) {
+        if (MAX_POOLED_PER_CLASS == 0 || bufferSize > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        if (bufferSize == 0) {
+            return 0;
+        }
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(bufferSize - 1));
+        return shift - MIN_CLASS_SHIFT + 1;
+    }
+
+    private static int capacity(int sizeClass) {
+        return sizeClass == 0 ? 0 : 1 << (sizeClass - 1 + MIN_CLASS_SHIFT);
+    }
+}
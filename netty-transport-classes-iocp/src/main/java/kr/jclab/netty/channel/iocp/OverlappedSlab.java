@@ -0,0 +1,165 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Slab of {@code netty_iocp_native_overlapped_t} headers owned by one {@link IocpEventLoop}.
+ * <p>
+ * Headers are carved out of large direct chunks instead of one direct allocation per {@link NativeOverlapped}, and
+ * every slot is paired with an {@link IocpCompletionContext} that is found again by the index stored in the header.
+ * As the kernel may still write into a header until its completion was dequeued, the chunks are only freed once the
+ * slab was {@link #free() freed} and every slot was released. Accepted pipes of other loops may still have operations
+ * pending when the owning loop shuts down.
+ * <p>
+ * Slots may be allocated from the {@link io.netty.channel.EventLoop} of an accepted channel which is not the loop
+ * that owns the completion port, so allocation is guarded by a lock. Dispatching a completion via {@link #get(int)}
+ * does not lock.
+ */
+final class OverlappedSlab {
+    private static final int SLOTS_PER_CHUNK = Math.max(1,
+            SystemPropertyUtil.getInt("kr.jclab.netty.channel.iocp.overlappedSlabChunkSize", 256));
+    // Keep every header pointer aligned so the OVERLAPPED structure is properly aligned.
+    private static final int SLOT_SIZE = (NativeOverlapped.SIZE_OF_HEADER + 15) & ~15;
+    private static final IocpCompletionContext[] EMPTY_CONTEXTS = new IocpCompletionContext[0];
+
+    private final NativeMemoryBudget budget;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private volatile IocpCompletionContext[] contexts = EMPTY_CONTEXTS;
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    private boolean freed;
+
+    OverlappedSlab(NativeMemoryBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the budget which the native memory of this slab and of the overlappeds using it is accounted to.
+     */
+    NativeMemoryBudget budget() {
+        return budget;
+    }
+
+    /**
+     * Allocate a slot for the given operation of the given channel.
+     */
+    synchronized IocpCompletionContext allocate(AbstractIocpChannel channel, int operation,
+                                                NativeOverlapped overlapped) {
+        if (freed) {
+            throw new IllegalStateException("overlapped slab was already freed, the loop of its completion port was " +
+                    "shut down");
+        }
+        if (freeCount == 0) {
+            grow();
+        }
+        IocpCompletionContext context = contexts[freeSlots[--freeCount]];
+        context.attach(channel, operation, overlapped);
+        return context;
+    }
+
+    /**
+     * Give the slot of the given context back to this slab. Must only be called once no operation which uses the
+     * header is pending anymore.
+     */
+    synchronized void release(IocpCompletionContext context) {
+        assert context.slab() == this;
+        context.detach();
+        // Remove the magic so a stale pointer is never mistaken as a valid header.
+        int index = context.index();
+        chunks.get(index / SLOTS_PER_CHUNK)
+                .putInt((index % SLOTS_PER_CHUNK) * SLOT_SIZE + NativeOverlapped.OFFSET_OF_MAGIC, 0);
+        freeSlots[freeCount++] = index;
+        if (freed && freeCount == contexts.length) {
+            freeChunks();
+        }
+    }
+
+    /**
+     * Returns the context of the given slot or {@code null} if the index is unknown.
+     */
+    IocpCompletionContext get(int index) {
+        IocpCompletionContext[] contexts = this.contexts;
+        if (index < 0 || index >= contexts.length) {
+            return null;
+        }
+        return contexts[index];
+    }
+
+    /**
+     * Returns the number of slots which are currently in use.
+     */
+    synchronized int used() {
+        return contexts.length - freeCount;
+    }
+
+    /**
+     * Returns a description of every slot which is attached to a channel of the given loop, that is every overlapped
+     * of its channels which was acquired and not released yet. An overlapped with more than one reference has an
+     * operation pending. Must be called by the given loop, the reference counts are only touched by it.
+     */
+    synchronized List<String> outstanding(IocpEventLoop loop) {
+        assert loop.inEventLoop();
+        List<String> outstanding = new ArrayList<String>();
+        for (IocpCompletionContext context : contexts) {
+            AbstractIocpChannel channel = context.channel();
+            NativeOverlapped overlapped = context.overlapped();
+            if (channel != null && overlapped != null && channel.eventLoop() == loop) {
+                outstanding.add(context + " refCount=" + overlapped.refCount());
+            }
+        }
+        return outstanding;
+    }
+
+    /**
+     * Free all chunks of this slab once every slot was released, which may be right away. No slot can be allocated
+     * anymore.
+     */
+    synchronized void free() {
+        if (freed) {
+            return;
+        }
+        freed = true;
+        if (freeCount == contexts.length) {
+            freeChunks();
+        }
+    }
+
+    private void freeChunks() {
+        for (ByteBuffer chunk : chunks) {
+            MemoryLeakDetector.remove(MemoryLeakDetector.Kind.OVERLAPPED_SLAB, Buffer.memoryAddress(chunk),
+                    chunk.capacity());
+            budget.release(chunk.capacity());
+            Buffer.free(chunk);
+        }
+        chunks.clear();
+        contexts = EMPTY_CONTEXTS;
+        freeCount = 0;
+    }
+
+    private void grow() {
+        ByteBuffer chunk = Buffer.allocateDirectWithNativeOrder(SLOTS_PER_CHUNK * SLOT_SIZE);
+        long chunkAddress = Buffer.memoryAddress(chunk);
+        // The headers are needed to do any I/O at all, so they are accounted even beyond the limit.
+        budget.reserve(chunk.capacity());
+        MemoryLeakDetector.put(MemoryLeakDetector.Kind.OVERLAPPED_SLAB, chunkAddress, chunk.capacity(), this);
+
+        IocpCompletionContext[] oldContexts = contexts;
+        int base = oldContexts.length;
+        IocpCompletionContext[] newContexts = Arrays.copyOf(oldContexts, base + SLOTS_PER_CHUNK);
+        if (freeSlots.length < newContexts.length) {
+            freeSlots = Arrays.copyOf(freeSlots, newContexts.length);
+        }
+        // Push in reverse order so the lowest index is handed out first.
+        for (int i = SLOTS_PER_CHUNK - 1; i >= 0; i--) {
+            newContexts[base + i] = new IocpCompletionContext(this, base + i, chunkAddress + (long) i * SLOT_SIZE);
+            freeSlots[freeCount++] = base + i;
+        }
+        chunks.add(chunk);
+        contexts = newContexts;
+    }
+}
@@ -1,12 +1,23 @@
 package kr.jclab.netty.channel.iocp;
 
 public class WinHandle extends AbstractWinHandle {
+    // FILE_SKIP_COMPLETION_PORT_ON_SUCCESS is set, operations which complete immediately queue no completion packet.
+    private volatile boolean skipCompletionPortOnSuccess;
+
     public WinHandle(long handle) {
         super(handle);
     }
 
+    boolean isSkipCompletionPortOnSuccess() {
+        return skipCompletionPortOnSuccess;
+    }
+
+    void setSkipCompletionPortOnSuccess(boolean skipCompletionPortOnSuccess) {
+        this.skipCompletionPortOnSuccess = skipCompletionPortOnSuccess;
+    }
+
     @Override
     protected int closeImpl(long handle) {
-        return NativeStaticallyReferencedJniMethods.winCloseHandle(handle);
+        return Native.closeHandle(handle);
     }
 }
@@ -7,6 +7,6 @@ public class WsaEventHandle extends AbstractWinHandle {
 
     @Override
     protected int closeImpl(long handle) {
-        return NativeStaticallyReferencedJniMethods.wsaCloseEvent(handle);
+        return Native.wsaCloseEvent(handle);
     }
 }
@@ -0,0 +1,87 @@
+package kr.jclab.netty.channel.iocp;
+
+import java.util.Arrays;
+
+/**
+ * Base class of the benchmarks of this module. They are tests which only run when the build is given
+ * {@code -Pbenchmark}, and print their results instead of asserting them:
+ * <pre>
+ * ./gradlew :netty-transport-classes-iocp:test -Pbenchmark --tests '*Benchmark'
+ * </pre>
+ * <p>
+ * A measurement warms the code up for some rounds, then times some more rounds and reports the median and the best.
+ * The counts can be changed with {@code kr.jclab.netty.channel.iocp.benchmark.warmupRounds} and
+ * {@code kr.jclab.netty.channel.iocp.benchmark.rounds}.
+ */
+abstract class AbstractBenchmark extends AbstractNamedPipeTest {
+    static final String ENABLED_PROPERTY = "kr.jclab.netty.channel.iocp.benchmark";
+    private static final int WARMUP_ROUNDS =
+            Math.max(0, Integer.getInteger("kr.jclab.netty.channel.iocp.benchmark.warmupRounds", 5));
+    private static final int ROUNDS =
+            Math.max(1, Integer.getInteger("kr.jclab.netty.channel.iocp.benchmark.rounds", 10));
+
+    // Consumes the results of the rounds, so the JIT cannot drop the measured code.
+    static volatile long sink;
+
+    interface Round {
+        /**
+         * Run the given number of operations.
+         *
+         * @return any value derived from the results of the operations
+         */
+        long run(int operations) throws Exception;
+    }
+
+    /**
+     * Time the given round and print the nanoseconds per operation.
+     *
+     * @return the median nanoseconds per operation
+     */
+    static double measure(String name, int operations, Round round) throws Exception {
+        double[] nanosPerOperation = time(operations, round);
+        double median = nanosPerOperation[ROUNDS / 2];
+        report(name, String.format("%.1f ns/op (best %.1f)", median, nanosPerOperation[0]));
+        return median;
+    }
+
+    /**
+     * Time the given round, whose operations are bytes, and print the megabytes per second.
+     *
+     * @return the median megabytes per second
+     */
+    static double measureThroughput(String name, int bytes, Round round) throws Exception {
+        double[] nanosPerByte = time(bytes, round);
+        double median = 1e9 / nanosPerByte[ROUNDS / 2] / (1024 * 1024);
+        report(name, String.format("%.1f MB/s (best %.1f)", median, 1e9 / nanosPerByte[0] / (1024 * 1024)));
+        return median;
+    }
+
+    /**
+     * Returns the sorted nanoseconds per operation of the timed rounds.
+     */
+    private static double[] time(int operations, Round round) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += round.run(operations);
+        }
+        double[] nanosPerOperation = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += round.run(operations);
+            nanosPerOperation[i] = (double) (System.nanoTime() - start) / operations;
+        }
+        Arrays.sort(nanosPerOperation);
+        return nanosPerOperation;
+    }
+
+    /**
+     * Returns the given percentile of the given samples, which must be sorted.
+     */
+    static long percentile(long[] sortedSamples, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, Math.min(sortedSamples.length - 1, index))];
+    }
+
+    static void report(String name, String result) {
+        System.out.println(String.format("%-64s %s", name, result));
+    }
+}
@@ -0,0 +1,142 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import org.junit.jupiter.api.AfterEach;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Base class of the tests which run pipes over the backend selected by {@code kr.jclab.netty.channel.iocp.backend},
+ * which is the in-memory backend unless the build is told otherwise.
+ */
+abstract class AbstractNamedPipeTest {
+    static final long TIMEOUT_SECONDS = 10;
+    private static final AtomicInteger PIPE_ID = new AtomicInteger();
+
+    private final List<EventLoopGroup> groups = new ArrayList<EventLoopGroup>();
+
+    @AfterEach
+    public void shutdownGroups() throws Exception {
+        for (EventLoopGroup group : groups) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+        for (EventLoopGroup group : groups) {
+            assertTrue(group.terminationFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "group terminated");
+        }
+        groups.clear();
+    }
+
+    /**
+     * Returns a new group which is shut down after the test.
+     */
+    IocpEventLoopGroup newGroup(int nThreads) {
+        IocpEventLoopGroup group = new IocpEventLoopGroup(nThreads);
+        groups.add(group);
+        return group;
+    }
+
+    static NamedPipeSocketAddress newAddress() {
+        return new NamedPipeSocketAddress("\\\\.\\pipe\\netty-iocp-test-" + PIPE_ID.incrementAndGet());
+    }
+
+    /**
+     * Bind a server which echoes everything it reads.
+     */
+    static Channel startEchoServer(EventLoopGroup boss, EventLoopGroup worker, NamedPipeSocketAddress address,
+                                   int depth) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(boss, worker)
+                .channel(NamedPipeServerChannel.class)
+                .childOption(IocpChannelOption.READ_AHEAD_DEPTH, depth)
+                .childOption(IocpChannelOption.WRITE_PIPELINE_DEPTH, depth)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new EchoHandler());
+                    }
+                })
+                .bind(address).sync().channel();
+    }
+
+    static Channel connect(EventLoopGroup group, NamedPipeSocketAddress address, int depth, ChannelHandler handler)
+            throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(NamedPipeChannel.class)
+                .option(IocpChannelOption.READ_AHEAD_DEPTH, depth)
+                .option(IocpChannelOption.WRITE_PIPELINE_DEPTH, depth)
+                .handler(handler)
+                .connect(address).sync().channel();
+    }
+
+    static byte[] randomBytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    static final class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * Collects the bytes read by a channel until the expected number arrived.
+     */
+    static final class ByteCollector extends ChannelInboundHandlerAdapter {
+        private final ByteBuf received = Unpooled.buffer();
+        private final int expected;
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        ByteCollector(int expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            try {
+                received.writeBytes(buf);
+            } finally {
+                buf.release();
+            }
+            if (received.readableBytes() >= expected) {
+                byte[] bytes = new byte[received.readableBytes()];
+                received.readBytes(bytes);
+                future.complete(bytes);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            future.completeExceptionally(cause);
+        }
+
+        byte[] await() throws Exception {
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}
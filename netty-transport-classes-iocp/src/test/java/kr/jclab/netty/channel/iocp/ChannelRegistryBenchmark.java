@@ -0,0 +1,83 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cost of the lookup of a channel by its file handle, which {@link IocpEventLoop} does for every completion. The
+ * primitive map of the loop is compared with the boxed {@link ConcurrentHashMap} it replaced.
+ */
+@EnabledIfSystemProperty(named = AbstractBenchmark.ENABLED_PROPERTY, matches = "true")
+public class ChannelRegistryBenchmark extends AbstractBenchmark {
+    private static final int LOOKUPS = 1 << 16;
+
+    @Test
+    public void testLookup() throws Exception {
+        for (int size : new int[] { 10000, 100000, 1000000 }) {
+            long[] handles = handles(size);
+            final long[] lookups = lookups(handles);
+            final Object channel = new Object();
+
+            // Same initial capacity as the registry of the loop.
+            final LongObjectMap<Object> primitive = new LongObjectHashMap<Object>(4096);
+            final ConcurrentHashMap<Long, Object> boxed = new ConcurrentHashMap<Long, Object>();
+            for (long handle : handles) {
+                primitive.put(handle, channel);
+                boxed.put(handle, channel);
+            }
+
+            measure("LongObjectHashMap.get, " + size + " handles", LOOKUPS, new Round() {
+                @Override
+                public long run(int operations) {
+                    long found = 0;
+                    for (int i = 0; i < operations; i++) {
+                        if (primitive.get(lookups[i]) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            });
+            measure("ConcurrentHashMap<Long, ?>.get, " + size + " handles", LOOKUPS, new Round() {
+                @Override
+                public long run(int operations) {
+                    long found = 0;
+                    for (int i = 0; i < operations; i++) {
+                        if (boxed.get(lookups[i]) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns handle values like the ones Windows hands out, small multiples of four.
+     */
+    private static long[] handles(int size) {
+        long[] handles = new long[size];
+        for (int i = 0; i < size; i++) {
+            handles[i] = 0x100 + 4L * i;
+        }
+        return handles;
+    }
+
+    /**
+     * Returns registered handles in random order, completions do not arrive in the order of registration.
+     */
+    private static long[] lookups(long[] handles) {
+        Random random = new Random(handles.length);
+        long[] lookups = new long[LOOKUPS];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = handles[random.nextInt(handles.length)];
+        }
+        return lookups;
+    }
+}
@@ -0,0 +1,109 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Native memory held per idle pipe with and without {@link IocpChannelOption#ZERO_BYTE_READ}. Both ends of every pipe
+ * have their read posted and no data arrives. The receive buffers are allocated from an unpooled allocator of the
+ * benchmark, so its metric counts exactly the buffers pinned by the reads.
+ */
+@EnabledIfSystemProperty(named = AbstractBenchmark.ENABLED_PROPERTY, matches = "true")
+public class IdleConnectionMemoryBenchmark extends AbstractBenchmark {
+    private static final int CONNECTIONS =
+            Integer.getInteger("kr.jclab.netty.channel.iocp.benchmark.connections", 1000);
+    private static final ChannelHandler IDLE = new IdleHandler();
+
+    @Test
+    public void testNativeMemoryPerIdleConnection() throws Exception {
+        nativeMemoryPerChannel(false);
+        nativeMemoryPerChannel(true);
+    }
+
+    private void nativeMemoryPerChannel(boolean zeroByteRead) throws Exception {
+        IocpEventLoopGroup server = newGroup(1);
+        IocpEventLoopGroup client = newGroup(1);
+        UnpooledByteBufAllocator allocator = new UnpooledByteBufAllocator(true);
+        long overlappedBytes = MemoryLeakDetector.liveBytes(MemoryLeakDetector.Kind.NATIVE_OVERLAPPED);
+        long slabBytes = MemoryLeakDetector.liveBytes(MemoryLeakDetector.Kind.OVERLAPPED_SLAB);
+
+        NamedPipeSocketAddress address = newAddress();
+        new ServerBootstrap()
+                .group(server)
+                .channel(NamedPipeServerChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        // PIPE_UNLIMITED_INSTANCES, the default allows 100 instances only.
+                        ((NamedPipeServerChannelConfig) ch.config()).setMaxInstances(255);
+                    }
+                })
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(IocpChannelOption.ZERO_BYTE_READ, zeroByteRead)
+                .childHandler(IDLE)
+                .bind(address).sync();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(client)
+                .channel(NamedPipeChannel.class)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .option(IocpChannelOption.ZERO_BYTE_READ, zeroByteRead)
+                .handler(IDLE);
+        List<Channel> channels = new ArrayList<Channel>(CONNECTIONS);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            channels.add(bootstrap.connect(address).sync().channel());
+        }
+        // The reads are posted once the pipes became active, which happens in tasks of the loops.
+        awaitTasks(server);
+        awaitTasks(client);
+
+        int pipeEnds = 2 * CONNECTIONS;
+        long receiveBuffers = allocator.metric().usedDirectMemory();
+        long overlappedBuffers = MemoryLeakDetector.liveBytes(MemoryLeakDetector.Kind.NATIVE_OVERLAPPED)
+                - overlappedBytes;
+        long headers = MemoryLeakDetector.liveBytes(MemoryLeakDetector.Kind.OVERLAPPED_SLAB) - slabBytes;
+        report("zero-byte read " + (zeroByteRead ? "on" : "off") + ", " + pipeEnds + " idle pipe ends",
+                String.format("%d bytes/pipe end (receive buffers %d, overlapped buffers %d, headers %d)",
+                        (receiveBuffers + overlappedBuffers + headers) / pipeEnds, receiveBuffers / pipeEnds,
+                        overlappedBuffers / pipeEnds, headers / pipeEnds));
+
+        for (Channel ch : channels) {
+            ch.close();
+        }
+        for (Channel ch : channels) {
+            ch.closeFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class IdleHandler extends ChannelInboundHandlerAdapter {
+    }
+
+    /**
+     * Wait until every loop of the given group ran the tasks which were queued before.
+     */
+    private static void awaitTasks(EventLoopGroup group) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            for (EventExecutor loop : group) {
+                loop.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
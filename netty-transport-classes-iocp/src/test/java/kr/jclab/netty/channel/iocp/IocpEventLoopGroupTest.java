@@ -0,0 +1,157 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IocpEventLoopGroupTest extends AbstractNamedPipeTest {
+
+    @Test
+    public void testAcceptedPipeRegisteredWithWorker() throws Exception {
+        IocpEventLoop boss = (IocpEventLoop) newGroup(1).next();
+        IocpEventLoop worker = (IocpEventLoop) newGroup(1).next();
+        IocpEventLoopGroup client = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        final CompletableFuture<Channel> accepted = new CompletableFuture<Channel>();
+        new ServerBootstrap()
+                .group(boss, worker)
+                .channel(NamedPipeServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        accepted.complete(ch);
+                    }
+                })
+                .bind(address).sync();
+
+        Channel ch = connect(client, address, 1, new EchoHandler());
+        Channel child = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // Only the server channel stays with the boss, the accepted pipe belongs to the worker.
+        assertEquals(1, registeredChannels(boss), "boss");
+        assertEquals(1, registeredChannels(worker), "worker");
+
+        ch.close().sync();
+        assertTrue(child.closeFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "accepted pipe closed");
+        assertEquals(1, registeredChannels(boss), "boss");
+        assertEquals(0, registeredChannels(worker), "worker");
+    }
+
+    @Test
+    public void testOutstandingOverlappedOperationsOfAcceptedPipe() throws Exception {
+        IocpEventLoop boss = (IocpEventLoop) newGroup(1).next();
+        IocpEventLoop worker = (IocpEventLoop) newGroup(1).next();
+        IocpEventLoopGroup client = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        final CompletableFuture<Channel> accepted = new CompletableFuture<Channel>();
+        new ServerBootstrap()
+                .group(boss, worker)
+                .channel(NamedPipeServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        accepted.complete(ch);
+                    }
+                })
+                .bind(address).sync();
+
+        connect(client, address, 1, new EchoHandler());
+        Channel child = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        String childId = child.id().asShortText();
+        // The pending read of the accepted pipe uses a slot of the boss, but is reported by the worker only.
+        List<String> workerOutstanding = worker.outstandingOverlappedOperations().get(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS);
+        assertTrue(containsChannel(workerOutstanding, childId), "worker: " + workerOutstanding);
+        List<String> bossOutstanding = boss.outstandingOverlappedOperations().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(containsChannel(bossOutstanding, childId), "boss: " + bossOutstanding);
+    }
+
+    @Test
+    public void testShutdownWorkerBeforeBoss() throws Exception {
+        testShutdownWithOpenPipes(false);
+    }
+
+    @Test
+    public void testShutdownBossBeforeWorker() throws Exception {
+        testShutdownWithOpenPipes(true);
+    }
+
+    private void testShutdownWithOpenPipes(boolean bossFirst) throws Exception {
+        long handles = Iocp.openHandleCount();
+        long slabs = MemoryLeakDetector.liveObjects(MemoryLeakDetector.Kind.OVERLAPPED_SLAB);
+        long overlappeds = MemoryLeakDetector.liveObjects(MemoryLeakDetector.Kind.NATIVE_OVERLAPPED);
+
+        IocpEventLoopGroup boss = newGroup(1);
+        IocpEventLoopGroup worker = newGroup(2);
+        IocpEventLoopGroup client = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(boss, worker, address, 2);
+        List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < 4; i++) {
+            byte[] data = randomBytes(100, i);
+            ByteCollector collector = new ByteCollector(data.length);
+            Channel ch = connect(client, address, 2, collector);
+            ch.writeAndFlush(Unpooled.wrappedBuffer(data));
+            assertArrayEquals(data, collector.await());
+            channels.add(ch);
+        }
+
+        // The pipes are still open and have reads outstanding on the completion port of the boss. The worker is shut
+        // down on its own, which strands the completions of its cancelled reads with the boss. The boss is shut down
+        // together with the worker, like bossGroup.shutdownGracefully(); workerGroup.shutdownGracefully(); does.
+        if (bossFirst) {
+            Future<?> bossTerminated = boss.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            Future<?> workerTerminated = worker.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            assertTrue(bossTerminated.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "boss terminated");
+            assertTrue(workerTerminated.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "worker terminated");
+        } else {
+            assertTrue(worker.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                    "worker terminated");
+            assertTrue(boss.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                    "boss terminated");
+        }
+        for (Channel ch : channels) {
+            assertTrue(ch.closeFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "client closed");
+        }
+        assertTrue(client.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                "client terminated");
+
+        // Every overlapped was released and the slabs of all loops were freed.
+        assertEquals(handles, Iocp.openHandleCount(), "open handles");
+        assertEquals(slabs, MemoryLeakDetector.liveObjects(MemoryLeakDetector.Kind.OVERLAPPED_SLAB), "slab chunks");
+        assertEquals(overlappeds, MemoryLeakDetector.liveObjects(MemoryLeakDetector.Kind.NATIVE_OVERLAPPED),
+                "overlappeds");
+    }
+
+    private static boolean containsChannel(List<String> outstanding, String channelId) {
+        for (String operation : outstanding) {
+            if (operation.contains(channelId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int registeredChannels(final IocpEventLoop loop) throws Exception {
+        // Read on the loop, the map is confined to it. Deregistration happens in a later task of the loop.
+        return loop.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return loop.registeredChannels();
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,56 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.util.concurrent.ScheduledFuture;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IocpEventLoopTest extends AbstractNamedPipeTest {
+
+    @Test
+    public void testNoSpuriousWakeupsWhileTaskPending() throws Exception {
+        IocpEventLoop loop = (IocpEventLoop) newGroup(1).next();
+        ScheduledFuture<?> future = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 2, TimeUnit.SECONDS);
+        long before = loop.spuriousWakeups();
+        Thread.sleep(500);
+
+        // The timer must be armed for the deadline of the task, the loop stays blocked until then.
+        assertFalse(future.isDone());
+        long wakeups = loop.spuriousWakeups() - before;
+        assertTrue(wakeups <= 2, "spurious wakeups: " + wakeups);
+        future.cancel(false);
+    }
+
+    @Test
+    public void testScheduledTaskRunsOnTime() throws Exception {
+        IocpEventLoop loop = (IocpEventLoop) newGroup(1).next();
+        long[] lateness = new long[20];
+        for (int i = 0; i < lateness.length; i++) {
+            final long delayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+            final long start = System.nanoTime();
+            ScheduledFuture<Long> future = loop.schedule(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return System.nanoTime() - start - delayNanos;
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            lateness[i] = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertTrue(lateness[i] >= 0, "ran early: " + lateness[i]);
+        }
+        Arrays.sort(lateness);
+        // Well above the precision of the waitable timer, well below the 15.6 ms of the default system timer.
+        long median = lateness[lateness.length / 2];
+        assertTrue(median < TimeUnit.MILLISECONDS.toNanos(5), "median lateness: " + median);
+        assertEquals(0, loop.spuriousWakeups(), "spurious wakeups");
+    }
+}
@@ -0,0 +1,223 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NamedPipeChannelTest extends AbstractNamedPipeTest {
+
+    @Test
+    public void testBossWorkerEcho() throws Exception {
+        IocpEventLoopGroup boss = newGroup(1);
+        IocpEventLoopGroup worker = newGroup(2);
+        IocpEventLoopGroup client = newGroup(2);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(boss, worker, address, 1);
+
+        // Several clients, so the accepted pipes are spread over both worker loops.
+        for (int i = 0; i < 4; i++) {
+            byte[] data = randomBytes(1000, i);
+            ByteCollector collector = new ByteCollector(data.length);
+            Channel ch = connect(client, address, 1, collector);
+            ch.writeAndFlush(Unpooled.wrappedBuffer(data));
+            assertArrayEquals(data, collector.await());
+            ch.close().sync();
+        }
+    }
+
+    @Test
+    public void testManySmallWrites() throws Exception {
+        testManySmallWrites(1);
+        testManySmallWrites(4);
+    }
+
+    private void testManySmallWrites(int depth) throws Exception {
+        IocpEventLoopGroup group = newGroup(2);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(group, group, address, depth);
+
+        byte[] data = randomBytes(20000 * 8, depth);
+        ByteCollector collector = new ByteCollector(data.length);
+        Channel ch = connect(group, address, depth, collector);
+        for (int i = 0; i < data.length; i += 8) {
+            ch.write(Unpooled.wrappedBuffer(data, i, 8));
+            if (i % 800 == 0) {
+                ch.flush();
+            }
+        }
+        ch.flush();
+        // Read-ahead and pipelined writes must keep the order of the bytes.
+        assertArrayEquals(data, collector.await());
+        ch.close().sync();
+    }
+
+    @Test
+    public void testLargeWrites() throws Exception {
+        IocpEventLoopGroup group = newGroup(2);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(group, group, address, 2);
+
+        byte[] data = randomBytes(6 * 1024 * 1024, 7);
+        ByteCollector collector = new ByteCollector(data.length);
+        Channel ch = connect(group, address, 2, collector);
+        ByteBufAllocator alloc = ch.alloc();
+
+        // A direct buffer is written from its own memory, a heap buffer is copied and a composite buffer is written
+        // component by component.
+        ByteBuf direct = alloc.directBuffer(4 * 1024 * 1024);
+        direct.writeBytes(data, 0, 4 * 1024 * 1024);
+        ByteBuf heap = Unpooled.wrappedBuffer(data, 4 * 1024 * 1024, 1024 * 1024);
+        CompositeByteBuf composite = alloc.compositeDirectBuffer();
+        int offset = 5 * 1024 * 1024;
+        for (int i = 0; i < 4; i++) {
+            ByteBuf component = alloc.directBuffer(256 * 1024);
+            component.writeBytes(data, offset + i * 256 * 1024, 256 * 1024);
+            composite.addComponent(true, component);
+        }
+        ch.write(direct);
+        ch.write(heap);
+        ch.writeAndFlush(composite);
+
+        assertArrayEquals(data, collector.await());
+        ch.close().sync();
+    }
+
+    @Test
+    public void testUnsupportedMessageFailsWrite() throws Exception {
+        IocpEventLoopGroup group = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(group, group, address, 1);
+
+        byte[] data = randomBytes(100, 11);
+        ByteCollector collector = new ByteCollector(data.length);
+        Channel ch = connect(group, address, 1, collector);
+        ChannelFuture future = ch.writeAndFlush("not a buffer").await();
+        assertInstanceOf(UnsupportedOperationException.class, future.cause());
+        // The rejected message does not stay in the outbound buffer, the buffers written after it still go out.
+        ch.writeAndFlush(Unpooled.wrappedBuffer(data));
+        assertArrayEquals(data, collector.await());
+        ch.close().sync();
+    }
+
+    @Test
+    public void testZeroByteReadEcho() throws Exception {
+        IocpEventLoopGroup group = newGroup(2);
+        NamedPipeSocketAddress address = newAddress();
+        new ServerBootstrap()
+                .group(group)
+                .channel(NamedPipeServerChannel.class)
+                .childOption(IocpChannelOption.ZERO_BYTE_READ, true)
+                .childHandler(new EchoHandler())
+                .bind(address).sync();
+
+        byte[] data = randomBytes(256 * 1024, 3);
+        ByteCollector collector = new ByteCollector(data.length);
+        Channel ch = connect(group, address, 1, collector);
+        ch.config().setOption(IocpChannelOption.ZERO_BYTE_READ, true);
+        for (int i = 0; i < data.length; i += 4096) {
+            ch.writeAndFlush(Unpooled.wrappedBuffer(data, i, 4096));
+        }
+        assertArrayEquals(data, collector.await());
+        ch.close().sync();
+    }
+
+    @Test
+    public void testEchoWithTinyNativeMemoryBudget() throws Exception {
+        IocpEventLoopGroup group = newGroup(1);
+        // Far less than the channels would use, reads are throttled and writes fall back to a buffer-less overlapped.
+        group.setNativeMemoryBudget(1);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(group, group, address, 4);
+
+        byte[] data = randomBytes(512 * 1024, 5);
+        ByteCollector collector = new ByteCollector(data.length);
+        Channel ch = connect(group, address, 4, collector);
+        for (int i = 0; i < data.length; i += 1024) {
+            ch.write(Unpooled.wrappedBuffer(data, i, 1024));
+        }
+        ch.flush();
+        assertArrayEquals(data, collector.await());
+        ch.close().sync();
+    }
+
+    @Test
+    public void testOverlappedPoolReuse() throws Exception {
+        IocpEventLoopGroup group = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        startEchoServer(group, group, address, 1);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] data = randomBytes(100, i);
+            ByteCollector collector = new ByteCollector(data.length);
+            Channel ch = connect(group, address, 1, collector);
+            ch.writeAndFlush(Unpooled.wrappedBuffer(data));
+            assertArrayEquals(data, collector.await());
+            ch.close().sync();
+        }
+        // The overlappeds of the closed pipes are handed out again.
+        assertTrue(group.overlappedPoolHits() > 0, "pool hits: " + group.overlappedPoolHits());
+    }
+
+    @Test
+    public void testClientCloseClosesAcceptedPipe() throws Exception {
+        IocpEventLoopGroup boss = newGroup(1);
+        IocpEventLoopGroup worker = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        final CompletableFuture<Channel> accepted = new CompletableFuture<Channel>();
+        new ServerBootstrap()
+                .group(boss, worker)
+                .channel(NamedPipeServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        accepted.complete(ch);
+                    }
+                })
+                .bind(address).sync();
+
+        Channel ch = connect(worker, address, 1, new ChannelInboundHandlerAdapter());
+        Channel child = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        ch.close().sync();
+        // The pending read of the accepted pipe completes with the broken pipe.
+        assertTrue(child.closeFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "accepted pipe closed");
+        assertFalse(child.isActive());
+    }
+
+    @Test
+    public void testServerCloseClosesClient() throws Exception {
+        IocpEventLoopGroup boss = newGroup(1);
+        IocpEventLoopGroup worker = newGroup(1);
+        NamedPipeSocketAddress address = newAddress();
+        new ServerBootstrap()
+                .group(boss, worker)
+                .channel(NamedPipeServerChannel.class)
+                .childOption(ChannelOption.AUTO_READ, true)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) {
+                        ctx.close();
+                    }
+                })
+                .bind(address).sync();
+
+        Channel ch = connect(worker, address, 1, new ChannelInboundHandlerAdapter());
+        assertTrue(ch.closeFuture().await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "client closed");
+    }
+}
@@ -0,0 +1,87 @@
+package kr.jclab.netty.channel.iocp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-operation overhead of the reference counting of {@link NativeOverlapped}. An operation takes a reference when
+ * it is submitted and releases it once its completion was handled. The plain, loop-confined reference count is
+ * compared with the {@link AtomicInteger} it replaced. The full cycle also acquires the overlapped from its pool and
+ * gives it back.
+ */
+@EnabledIfSystemProperty(named = AbstractBenchmark.ENABLED_PROPERTY, matches = "true")
+public class OverlappedLifecycleBenchmark extends AbstractBenchmark {
+    private static final int OPERATIONS = 1 << 20;
+    private static final int BATCH = 64;
+
+    @Test
+    public void testReferenceCounting() throws Exception {
+        String checks = Boolean.getBoolean("kr.jclab.netty.channel.iocp.checkOverlappedLifecycle")
+                ? " (lifecycle checks on)" : "";
+        OverlappedSlab slab = new OverlappedSlab(new NativeMemoryBudget(Long.MAX_VALUE));
+        final OverlappedPool pool = new OverlappedPool(slab);
+        final NativeOverlapped[] overlappeds = new NativeOverlapped[BATCH];
+        final AtomicInteger[] atomicRefCounts = new AtomicInteger[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            overlappeds[i] = pool.acquire(null, IocpCompletionContext.OP_READ, null, 0);
+            atomicRefCounts[i] = new AtomicInteger(1);
+        }
+        try {
+            // A batch of operations is submitted, then their completions are handled. Taking and releasing the
+            // reference of the same overlapped back to back would be folded away by the JIT.
+            measure("NativeOverlapped refInc/refDec" + checks, OPERATIONS, new Round() {
+                @Override
+                public long run(int operations) {
+                    long sum = 0;
+                    for (int done = 0; done < operations; done += BATCH) {
+                        for (NativeOverlapped overlapped : overlappeds) {
+                            overlapped.refInc();
+                        }
+                        for (NativeOverlapped overlapped : overlappeds) {
+                            overlapped.refDec();
+                        }
+                        sum += overlappeds[done % BATCH].refCount();
+                    }
+                    return sum;
+                }
+            });
+            measure("AtomicInteger incrementAndGet/decrementAndGet", OPERATIONS, new Round() {
+                @Override
+                public long run(int operations) {
+                    long sum = 0;
+                    for (int done = 0; done < operations; done += BATCH) {
+                        for (AtomicInteger refCount : atomicRefCounts) {
+                            refCount.incrementAndGet();
+                        }
+                        for (AtomicInteger refCount : atomicRefCounts) {
+                            sum += refCount.decrementAndGet();
+                        }
+                    }
+                    return sum;
+                }
+            });
+            measure("acquire, refInc, refDec, release to the pool" + checks, OPERATIONS, new Round() {
+                @Override
+                public long run(int operations) {
+                    long sum = 0;
+                    for (int i = 0; i < operations; i++) {
+                        NativeOverlapped op = pool.acquire(null, IocpCompletionContext.OP_WRITE, null, 0);
+                        op.refInc();
+                        op.refDec();
+                        op.refDec();
+                        sum += op.memoryAddress();
+                    }
+                    return sum;
+                }
+            });
+        } finally {
+            for (NativeOverlapped overlapped : overlappeds) {
+                overlapped.refDec();
+            }
+            pool.free();
+            slab.free();
+        }
+    }
+}
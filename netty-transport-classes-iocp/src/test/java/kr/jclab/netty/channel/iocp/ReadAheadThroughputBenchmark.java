@@ -0,0 +1,116 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of one pipe for the read-ahead depths 1 to 8 of the receiving side. The sender keeps the same write
+ * pipeline depth, so only the number of reads outstanding on the receiver changes.
+ */
+@EnabledIfSystemProperty(named = AbstractBenchmark.ENABLED_PROPERTY, matches = "true")
+public class ReadAheadThroughputBenchmark extends AbstractBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_ROUND = 1024;
+    private static final int WRITE_PIPELINE_DEPTH = 4;
+
+    @Test
+    public void testThroughput() throws Exception {
+        IocpEventLoopGroup server = newGroup(1);
+        IocpEventLoopGroup client = newGroup(1);
+        final ByteBuf chunk = Unpooled.directBuffer(CHUNK_SIZE).writeBytes(randomBytes(CHUNK_SIZE, 15));
+        try {
+            for (int depth = 1; depth <= 8; depth++) {
+                NamedPipeSocketAddress address = newAddress();
+                final CompletableFuture<Channel> accepted = new CompletableFuture<Channel>();
+                final ByteSink sink = new ByteSink();
+                new ServerBootstrap()
+                        .group(server)
+                        .channel(NamedPipeServerChannel.class)
+                        .childOption(IocpChannelOption.READ_AHEAD_DEPTH, depth)
+                        .childHandler(new ChannelInitializer<Channel>() {
+                            @Override
+                            protected void initChannel(Channel ch) {
+                                ch.pipeline().addLast(sink);
+                                accepted.complete(ch);
+                            }
+                        })
+                        .bind(address).sync();
+                final Channel ch = connect(client, address, WRITE_PIPELINE_DEPTH, new ChannelInboundHandlerAdapter());
+                final Channel child = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+                measureThroughput("read-ahead depth " + depth, CHUNK_SIZE * CHUNKS_PER_ROUND, new Round() {
+                    @Override
+                    public long run(int bytes) throws Exception {
+                        CompletableFuture<Long> received = sink.expect(child, bytes);
+                        ch.eventLoop().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (int i = 0; i < CHUNKS_PER_ROUND; i++) {
+                                    ch.write(chunk.retainedDuplicate());
+                                }
+                                ch.flush();
+                            }
+                        });
+                        return received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    }
+                });
+                ch.close().sync();
+            }
+        } finally {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Counts and drops the bytes read by the accepted pipe.
+     */
+    private static final class ByteSink extends ChannelInboundHandlerAdapter {
+        // Confined to the loop of the accepted pipe.
+        private long received;
+        private long target;
+        private CompletableFuture<Long> done;
+
+        /**
+         * Returns a future which completes once the given number of further bytes was read.
+         */
+        CompletableFuture<Long> expect(Channel child, final long bytes) throws Exception {
+            return child.eventLoop().submit(new Callable<CompletableFuture<Long>>() {
+                @Override
+                public CompletableFuture<Long> call() {
+                    target = received + bytes;
+                    done = new CompletableFuture<Long>();
+                    return done;
+                }
+            }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            received += buf.readableBytes();
+            buf.release();
+            if (done != null && received >= target) {
+                done.complete(received);
+                done = null;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (done != null) {
+                done.completeExceptionally(cause);
+            }
+        }
+    }
+}
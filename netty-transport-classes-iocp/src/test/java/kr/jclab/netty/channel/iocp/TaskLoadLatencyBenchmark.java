@@ -0,0 +1,200 @@
+package kr.jclab.netty.channel.iocp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultSelectStrategyFactory;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SelectStrategy;
+import io.netty.channel.SelectStrategyFactory;
+import io.netty.util.IntSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Latency of pipe completions on a loop which is flooded with {@link EventLoop#execute(Runnable)} tasks. The loop
+ * polls the completion port whenever tasks are pending, so completions are handled between the tasks. The old
+ * behaviour, which skipped the completions while tasks were pending, is reproduced by a select strategy which does
+ * not call the supplier.
+ */
+@EnabledIfSystemProperty(named = AbstractBenchmark.ENABLED_PROPERTY, matches = "true")
+public class TaskLoadLatencyBenchmark extends AbstractBenchmark {
+    private static final int ROUND_TRIPS = 2000;
+    // Tasks kept queued on the loop of the client while it is loaded.
+    private static final int CIRCULATING_TASKS = 64;
+
+    @Test
+    public void testRoundTripLatency() throws Exception {
+        roundTrips("poll while tasks pending", DefaultSelectStrategyFactory.INSTANCE, false);
+        roundTrips("poll while tasks pending", DefaultSelectStrategyFactory.INSTANCE, true);
+        roundTrips("skip completions while tasks pending", SKIP_COMPLETIONS, false);
+        roundTrips("skip completions while tasks pending", SKIP_COMPLETIONS, true);
+    }
+
+    private void roundTrips(String name, SelectStrategyFactory strategy, boolean loaded) throws Exception {
+        IocpEventLoopGroup server = newGroup(1);
+        IocpEventLoopGroup client = new IocpEventLoopGroup(1, strategy);
+        try {
+            NamedPipeSocketAddress address = newAddress();
+            startEchoServer(server, server, address, 1);
+            PingPong pingPong = new PingPong(ROUND_TRIPS / 10 + ROUND_TRIPS);
+            Channel ch = connect(client, address, 1, pingPong);
+
+            TaskFlood flood = loaded ? new TaskFlood(ch.eventLoop()) : null;
+            if (flood != null) {
+                flood.start();
+            }
+            long[] samples;
+            try {
+                samples = pingPong.run(ch);
+            } finally {
+                if (flood != null) {
+                    flood.stop();
+                }
+            }
+            if (samples == null) {
+                report(name + (loaded ? ", loaded" : ", idle"), String.format("starved, %d of %d round trips in %d s",
+                        pingPong.count(), ROUND_TRIPS / 10 + ROUND_TRIPS, TIMEOUT_SECONDS));
+                return;
+            }
+            // Leave out the warm-up.
+            samples = Arrays.copyOfRange(samples, ROUND_TRIPS / 10, samples.length);
+            Arrays.sort(samples);
+            report(name + (loaded ? ", loaded" : ", idle"), String.format("p50 %d us, p99 %d us, max %d us",
+                    TimeUnit.NANOSECONDS.toMicros(percentile(samples, 50)),
+                    TimeUnit.NANOSECONDS.toMicros(percentile(samples, 99)),
+                    TimeUnit.NANOSECONDS.toMicros(samples[samples.length - 1])));
+            ch.close().sync();
+        } finally {
+            client.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The select strategy of the loop before completions were polled while tasks are pending.
+     */
+    private static final SelectStrategyFactory SKIP_COMPLETIONS = new SelectStrategyFactory() {
+        @Override
+        public SelectStrategy newSelectStrategy() {
+            return new SelectStrategy() {
+                @Override
+                public int calculateStrategy(IntSupplier selectSupplier, boolean hasTasks) {
+                    return hasTasks ? 0 : SelectStrategy.SELECT;
+                }
+            };
+        }
+    };
+
+    /**
+     * Sends one byte and sends the next one once the echo arrived, all on the loop of the channel, so a sample is the
+     * time from the write to the handled read completion.
+     */
+    private static final class PingPong extends ChannelInboundHandlerAdapter {
+        private final long[] samples;
+        private final CompletableFuture<long[]> done = new CompletableFuture<long[]>();
+        private ChannelHandlerContext ctx;
+        private int count;
+        // Read from the test thread once the round trips did not complete in time.
+        private volatile int completed;
+        private long sentNanos;
+
+        PingPong(int roundTrips) {
+            samples = new long[roundTrips];
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        /**
+         * Returns the round trip times or {@code null} if they did not complete in time.
+         */
+        long[] run(Channel ch) throws Exception {
+            ch.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ping();
+                }
+            });
+            try {
+                return done.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            }
+        }
+
+        int count() {
+            return completed;
+        }
+
+        private void ping() {
+            sentNanos = System.nanoTime();
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[] { 1 }));
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            long now = System.nanoTime();
+            int bytes = ((ByteBuf) msg).readableBytes();
+            ((ByteBuf) msg).release();
+            for (int i = 0; i < bytes && count < samples.length; i++) {
+                samples[count++] = now - sentNanos;
+            }
+            completed = count;
+            if (count == samples.length) {
+                done.complete(samples);
+            } else {
+                ping();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            done.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Keeps a loop busy with short tasks. Every task submits itself again once it ran, so the loop always has tasks
+     * pending, no matter how many cores there are to submit them from.
+     */
+    private static final class TaskFlood implements Runnable {
+        private final EventLoop loop;
+        private volatile boolean running = true;
+
+        TaskFlood(EventLoop loop) {
+            this.loop = loop;
+        }
+
+        void start() {
+            for (int i = 0; i < CIRCULATING_TASKS; i++) {
+                loop.execute(this);
+            }
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            // A little work per task, like decoding a message.
+            long x = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                x = x * 31 + i;
+            }
+            sink += x;
+            if (running) {
+                loop.execute(this);
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 #include <windows.h>
 
 #include <jni.h>
+#include <stddef.h>
 #include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
@@ -46,20 +47,25 @@ static jfieldID overlappedEntryOverlappedValidFieldId = NULL;
 static jfieldID overlappedEntryFileHandleFieldId = NULL;
 static jfieldID overlappedEntryEventHandleFieldId = NULL;
 static jfieldID overlappedEntryBufferSizeFieldId = NULL;
+static jfieldID overlappedEntryContextIndexFieldId = NULL;
 static jfieldID nativeOverlappedMemoryAddressFieldId = NULL;
 static jfieldID nativeOverlappedInternalFieldId = NULL;
 static jfieldID nativeOverlappedInternalHighFieldId = NULL;
 
+// This needs to be consistent with NativeOverlapped.java
 #define OVERLAPPED_MAGIC 0x0caffe00
 
+// The headers live in the per event loop slab (see OverlappedSlab.java), the data buffer is allocated separately.
 typedef struct _netty_iocp_native_overlapped {
     OVERLAPPED overlapped;
     DWORD      magic;
     HANDLE     fileHandle;
     DWORD      bufferSize;
+    DWORD      contextIndex;
+    char*      buffer;
 } netty_iocp_native_overlapped_t;
 
-#define OVERLAPPED_BUFFER(pov) (((char*)pov) + sizeof(netty_iocp_native_overlapped_t))
+#define OVERLAPPED_BUFFER(pov) ((pov)->buffer)
 
 // JNI Registered Methods Begin
 
@@ -91,6 +97,38 @@ static jint netty_iocp_native_sizeOfNativeOverlappedStruct(JNIEnv* env, jclass c
     return (jint) sizeof(netty_iocp_native_overlapped_t);
 }
 
+static jint netty_iocp_native_offsetofOverlappedEntryCompletionKey(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(OVERLAPPED_ENTRY, lpCompletionKey);
+}
+
+static jint netty_iocp_native_offsetofOverlappedEntryOverlapped(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(OVERLAPPED_ENTRY, lpOverlapped);
+}
+
+static jint netty_iocp_native_offsetofOverlappedEntryNumberOfBytesTransferred(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(OVERLAPPED_ENTRY, dwNumberOfBytesTransferred);
+}
+
+static jint netty_iocp_native_offsetofNativeOverlappedEventHandle(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(netty_iocp_native_overlapped_t, overlapped.hEvent);
+}
+
+static jint netty_iocp_native_offsetofNativeOverlappedMagic(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(netty_iocp_native_overlapped_t, magic);
+}
+
+static jint netty_iocp_native_offsetofNativeOverlappedFileHandle(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(netty_iocp_native_overlapped_t, fileHandle);
+}
+
+static jint netty_iocp_native_offsetofNativeOverlappedBufferSize(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(netty_iocp_native_overlapped_t, bufferSize);
+}
+
+static jint netty_iocp_native_offsetofNativeOverlappedContextIndex(JNIEnv* env, jclass clazz) {
+    return (jint) offsetof(netty_iocp_native_overlapped_t, contextIndex);
+}
+
 static jint pipeAccessDuplex() {
     return (jint) PIPE_ACCESS_DUPLEX;
 }
@@ -139,6 +177,18 @@ static jint errorNotFound() {
     return (jint) ERROR_NOT_FOUND;
 }
 
+static jint errorIoPending() {
+    return (jint) ERROR_IO_PENDING;
+}
+
+static jint errorBrokenPipe() {
+    return (jint) ERROR_BROKEN_PIPE;
+}
+
+static jint fileSkipCompletionPortOnSuccess() {
+    return (jint) FILE_SKIP_COMPLETION_PORT_ON_SUCCESS;
+}
+
 static jlong netty_iocp_native_createIoCompletionPort(
     JNIEnv* env, jclass clazz,
     jlong file_handle, jlong existing_completion_port, jlong completion_key, jint number_of_concurrent_threads
@@ -266,6 +316,7 @@ static jint netty_iocp_native_readOverlappedEntry(
         (*env)->SetLongField(env, target, overlappedEntryEventHandleFieldId,
                              (jlong) nativeOverlapped->overlapped.hEvent);
         (*env)->SetIntField(env, target, overlappedEntryBufferSizeFieldId, (jint) nativeOverlapped->bufferSize);
+        (*env)->SetIntField(env, target, overlappedEntryContextIndexFieldId, (jint) nativeOverlapped->contextIndex);
     } else {
         (*env)->SetBooleanField(env, target, overlappedEntryOverlappedValidFieldId, 0);
     }
@@ -335,13 +386,57 @@ static jlong netty_iocp_native_createEvent(
     return (jlong) event;
 }
 
+#ifndef CREATE_WAITABLE_TIMER_HIGH_RESOLUTION
+#define CREATE_WAITABLE_TIMER_HIGH_RESOLUTION 0x00000002
+#endif
+
+static jlong netty_iocp_native_createHighResolutionTimer(
+    JNIEnv* env, jclass clazz
+) {
+    // Fails with ERROR_INVALID_PARAMETER before Windows 10 1803, the caller falls back to a coarser wait.
+    HANDLE timer = CreateWaitableTimerExW(NULL, NULL, CREATE_WAITABLE_TIMER_HIGH_RESOLUTION, TIMER_ALL_ACCESS);
+    if (timer == NULL) {
+        return -((int) GetLastError());
+    }
+    return (jlong) timer;
+}
+
+static jint netty_iocp_native_setWaitableTimer(
+    JNIEnv* env, jclass clazz,
+    jlong handle,
+    jlong delayNanos
+) {
+    LARGE_INTEGER dueTime;
+    // A negative due time is relative, in 100 nanosecond intervals. Round up so the timer never fires early.
+    dueTime.QuadPart = -((delayNanos + 99) / 100);
+    if (dueTime.QuadPart == 0) {
+        dueTime.QuadPart = -1;
+    }
+    if (SetWaitableTimer((HANDLE) handle, &dueTime, 0, NULL, NULL, FALSE)) {
+        return 0;
+    }
+    return GetLastError();
+}
+
+static jint netty_iocp_native_waitForSingleObject(
+    JNIEnv* env, jclass clazz,
+    jlong handle
+) {
+    if (WaitForSingleObject((HANDLE) handle, INFINITE) == WAIT_FAILED) {
+        return GetLastError();
+    }
+    return 0;
+}
+
 
-static jlong netty_iocp_native_overlappedInitialize(
+static jint netty_iocp_native_overlappedInitialize(
     JNIEnv* env, jclass clazz,
     jlong memory,
     jlong eventHandle,
     jlong fileHandle,
-    jint  bufferSize
+    jlong bufferAddress,
+    jint  bufferSize,
+    jint  contextIndex
 ) {
     netty_iocp_native_overlapped_t* entry = (netty_iocp_native_overlapped_t*) memory;
     memset(&entry->overlapped, 0, sizeof(entry->overlapped));
@@ -349,6 +444,9 @@ static jlong netty_iocp_native_overlappedInitialize(
     entry->overlapped.hEvent = (HANDLE) eventHandle;
     entry->fileHandle = (HANDLE) fileHandle;
     entry->bufferSize = bufferSize;
+    entry->contextIndex = (DWORD) contextIndex;
+    entry->buffer = (char*) bufferAddress;
+    return 0;
 }
 
 static jint netty_iocp_native_connectNamedPipe0(
@@ -364,7 +462,10 @@ static jint netty_iocp_native_connectNamedPipe0(
         case ERROR_IO_PENDING:
             return 0;
         case ERROR_PIPE_CONNECTED:
-            SetEvent(lpoverlapped->hEvent);
+            // Overlapped structures normally have no event as completions are dequeued from the port.
+            if (lpoverlapped->hEvent != NULL) {
+                SetEvent(lpoverlapped->hEvent);
+            }
             return 1;
     }
     return -((int) last_error);
@@ -372,12 +473,16 @@ static jint netty_iocp_native_connectNamedPipe0(
 
 static jint netty_iocp_native_startOverlappedRead(
     JNIEnv* env, jclass clazz,
-    jlong overlappedPointer
+    jlong overlappedPointer,
+    jlong bufferAddress,
+    jint bufferSize
 ) {
     netty_iocp_native_overlapped_t *overlapped = (netty_iocp_native_overlapped_t *) overlappedPointer;
     DWORD dw_err;
     DWORD dwReadBytes = 0;
 
+    overlapped->buffer = (char*) bufferAddress;
+    overlapped->bufferSize = (DWORD) bufferSize;
     overlapped->overlapped.Internal = 0;
     overlapped->overlapped.InternalHigh = 0;
     overlapped->overlapped.Offset = 0;
@@ -394,8 +499,9 @@ static jint netty_iocp_native_startOverlappedRead(
     }
 
     dw_err = GetLastError();
-    if (dw_err == ERROR_IO_PENDING) {
-        return 0;
+    if (dw_err == ERROR_IO_PENDING || dw_err == ERROR_MORE_DATA) {
+        // ERROR_MORE_DATA: a part of a larger message was read, the completion packet is queued anyway.
+        return -((int) ERROR_IO_PENDING);
     }
     return -((int)dw_err);
 }
@@ -403,12 +509,15 @@ static jint netty_iocp_native_startOverlappedRead(
 static jint netty_iocp_native_startOverlappedWrite(
     JNIEnv* env, jclass clazz,
     jlong overlappedPointer,
+    jlong bufferAddress,
     jint dataSize
 ) {
     netty_iocp_native_overlapped_t *overlapped = (netty_iocp_native_overlapped_t *) overlappedPointer;
     DWORD dw_err;
     DWORD dwReadBytes = 0;
 
+    overlapped->buffer = (char*) bufferAddress;
+    overlapped->bufferSize = (DWORD) dataSize;
     overlapped->overlapped.Internal = 0;
     overlapped->overlapped.InternalHigh = 0;
     overlapped->overlapped.Offset = 0;
@@ -426,7 +535,7 @@ static jint netty_iocp_native_startOverlappedWrite(
 
     dw_err = GetLastError();
     if (dw_err == ERROR_IO_PENDING) {
-        return 0;
+        return -((int) ERROR_IO_PENDING);
     }
     return -((int)dw_err);
 }
@@ -507,6 +616,19 @@ static jint netty_iocp_native_setPipeMessageReadMode0(
     return -((int) dw_err);
 }
 
+static jint netty_iocp_native_setFileCompletionNotificationModes0(
+    JNIEnv* env, jclass clazz,
+    jlong handle,
+    jint flags
+) {
+    DWORD dw_err;
+    if (SetFileCompletionNotificationModes((HANDLE) handle, (UCHAR) flags)) {
+        return 0;
+    }
+    dw_err = GetLastError();
+    return -((int) dw_err);
+}
+
 // JNI Registered Methods End
 
 // JNI Method Registration Table Begin
@@ -520,6 +642,14 @@ static const JNINativeMethod statically_referenced_fixed_method_table[] = {
   { "sizeOfPtr", "()I", (void *) netty_iocp_native_sizeOfPtr },
   { "sizeOfOverlappedEntry", "()I", (void *) netty_iocp_native_sizeOfOverlappedEntry },
   { "sizeOfNativeOverlappedStruct", "()I", (void *) netty_iocp_native_sizeOfNativeOverlappedStruct },
+  { "offsetofOverlappedEntryCompletionKey", "()I", (void *) netty_iocp_native_offsetofOverlappedEntryCompletionKey },
+  { "offsetofOverlappedEntryOverlapped", "()I", (void *) netty_iocp_native_offsetofOverlappedEntryOverlapped },
+  { "offsetofOverlappedEntryNumberOfBytesTransferred", "()I", (void *) netty_iocp_native_offsetofOverlappedEntryNumberOfBytesTransferred },
+  { "offsetofNativeOverlappedEventHandle", "()I", (void *) netty_iocp_native_offsetofNativeOverlappedEventHandle },
+  { "offsetofNativeOverlappedMagic", "()I", (void *) netty_iocp_native_offsetofNativeOverlappedMagic },
+  { "offsetofNativeOverlappedFileHandle", "()I", (void *) netty_iocp_native_offsetofNativeOverlappedFileHandle },
+  { "offsetofNativeOverlappedBufferSize", "()I", (void *) netty_iocp_native_offsetofNativeOverlappedBufferSize },
+  { "offsetofNativeOverlappedContextIndex", "()I", (void *) netty_iocp_native_offsetofNativeOverlappedContextIndex },
   { "pipeAccessDuplex", "()I", (void *) pipeAccessDuplex },
   { "pipeAccessDuplex", "()I", (void *) pipeAccessDuplex },
   { "pipeAccessInbound", "()I", (void *) pipeAccessInbound },
@@ -533,6 +663,9 @@ static const JNINativeMethod statically_referenced_fixed_method_table[] = {
   { "flagPipeReadmodeMessage", "()I", (void *) flagPipeReadmodeMessage },
   { "flagPipeReadmodeByte", "()I", (void *) flagPipeReadmodeByte },
   { "errorNotFound", "()I", (void *) errorNotFound },
+  { "errorIoPending", "()I", (void *) errorIoPending },
+  { "errorBrokenPipe", "()I", (void *) errorBrokenPipe },
+  { "fileSkipCompletionPortOnSuccess", "()I", (void *) fileSkipCompletionPortOnSuccess },
 };
 static const jint statically_referenced_fixed_method_table_size = sizeof(statically_referenced_fixed_method_table) / sizeof(statically_referenced_fixed_method_table[0]);
 static const JNINativeMethod fixed_method_table[] = {
@@ -542,16 +675,20 @@ static const JNINativeMethod fixed_method_table[] = {
   { "postQueuedCompletionStatus0", "(JIJJ)I", netty_iocp_native_postQueuedCompletionStatus },
   { "createNamedPipe0", "(Ljava/lang/String;IIIIIJ)J", netty_iocp_native_createNamedPipe },
   { "createEvent0", "(JZZLjava/lang/String;)J", netty_iocp_native_createEvent },
-  { "overlappedInitialize0", "(JJJI)I", netty_iocp_native_overlappedInitialize },
+  { "createHighResolutionTimer0", "()J", netty_iocp_native_createHighResolutionTimer },
+  { "setWaitableTimer0", "(JJ)I", netty_iocp_native_setWaitableTimer },
+  { "waitForSingleObject0", "(J)I", netty_iocp_native_waitForSingleObject },
+  { "overlappedInitialize0", "(JJJJII)I", netty_iocp_native_overlappedInitialize },
   { "connectNamedPipe0", "(JJ)I", netty_iocp_native_connectNamedPipe0 },
   { "readOverlappedEntry0", "(JLkr/jclab/netty/channel/iocp/OverlappedEntry;)I", netty_iocp_native_readOverlappedEntry },
   { "readNativeOverlapped0", "(Lkr/jclab/netty/channel/iocp/NativeOverlapped;)I", netty_iocp_native_readNativeOverlapped },
-  { "startOverlappedRead0", "(J)I", netty_iocp_native_startOverlappedRead },
-  { "startOverlappedWrite0", "(JI)I", netty_iocp_native_startOverlappedWrite },
+  { "startOverlappedRead0", "(JJI)I", netty_iocp_native_startOverlappedRead },
+  { "startOverlappedWrite0", "(JJI)I", netty_iocp_native_startOverlappedWrite },
   { "cancelIoEx0", "(JJ)I", netty_iocp_native_cancelIoEx },
   { "getNamedPipeClientProcessId0", "(J)J", netty_iocp_native_getNamedPipeClientProcessId },
   { "createFile0", "(Ljava/lang/String;IIJIIJ)J", netty_iocp_native_createFile },
   { "setPipeMessageReadMode0", "(JI)I", netty_iocp_native_setPipeMessageReadMode0 },
+  { "setFileCompletionNotificationModes0", "(JI)I", netty_iocp_native_setFileCompletionNotificationModes0 },
   // static native long createEvent0(long defaultSecurityAttributePointer, boolean manualReset, boolean initialState, String name);
 
 //  { "eventFd", "()I", (void *) netty_iocp_native_eventFd },
@@ -649,6 +786,7 @@ static jint netty_iocp_native_JNI_OnLoad(JNIEnv* env, const char* packagePrefix)
     NETTY_JNI_UTIL_GET_FIELD(env, javaOverlappedEntryCls, overlappedEntryFileHandleFieldId, "fileHandle", "J", done);
     NETTY_JNI_UTIL_GET_FIELD(env, javaOverlappedEntryCls, overlappedEntryEventHandleFieldId, "eventHandle", "J", done);
     NETTY_JNI_UTIL_GET_FIELD(env, javaOverlappedEntryCls, overlappedEntryBufferSizeFieldId, "bufferSize", "I", done);
+    NETTY_JNI_UTIL_GET_FIELD(env, javaOverlappedEntryCls, overlappedEntryContextIndexFieldId, "contextIndex", "I", done);
 
     NETTY_JNI_UTIL_GET_FIELD(env, javaNativeOverlappedCls, nativeOverlappedMemoryAddressFieldId, "memoryAddress", "J", done);
     NETTY_JNI_UTIL_GET_FIELD(env, javaNativeOverlappedCls, nativeOverlappedInternalFieldId, "internal", "J", done);
@@ -690,6 +828,7 @@ static void netty_iocp_native_JNI_OnUnload(JNIEnv* env) {
     overlappedEntryFileHandleFieldId = NULL;
     overlappedEntryEventHandleFieldId = NULL;
     overlappedEntryBufferSizeFieldId = NULL;
+    overlappedEntryContextIndexFieldId = NULL;
     nativeOverlappedMemoryAddressFieldId = NULL;
     nativeOverlappedInternalFieldId = NULL;
     nativeOverlappedInternalHighFieldId = NULL;